@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.killbill.logging.log4j.benchmarks.SyntheticThrowables;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the compact serialized form of the (enhanced) proxy against Log4J's
+ * throwable proxy, which uses default serialization of the same (extended) frames.
+ * Serialized sizes are printed during setup.
+ *
+ * NOTE: placed in the proxy's package since it is not public.
+ *
+ * @author kares
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProxySerializationBenchmark {
+
+    @Param({ "10", "100", "300" })
+    int depth;
+
+    @Param({ "0", "3" })
+    int causes;
+
+    private EnhancedThrowableProxy compact;
+    private ThrowableProxy standard;
+
+    private byte[] compactBytes;
+    private byte[] standardBytes;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setup() throws IOException {
+        final Throwable throwable = SyntheticThrowables.newThrowable(depth, causes, 0, false);
+        compact = new EnhancedThrowableProxy(throwable);
+        standard = new ThrowableProxy(throwable);
+
+        compactBytes = serialize(compact);
+        standardBytes = serialize(standard);
+        System.out.println("\nserialized size (depth = " + depth + ", causes = " + causes + "): compact = " +
+            compactBytes.length + " default = " + standardBytes.length);
+    }
+
+    @Benchmark
+    public int writeCompact() throws IOException {
+        return serialize(compact).length;
+    }
+
+    @Benchmark
+    public int writeDefault() throws IOException {
+        return serialize(standard).length;
+    }
+
+    @Benchmark
+    public Object readCompact() throws Exception {
+        return deserialize(compactBytes);
+    }
+
+    @Benchmark
+    public Object readDefault() throws Exception {
+        return deserialize(standardBytes);
+    }
+
+    private byte[] serialize(final Serializable obj) throws IOException {
+        buffer.reset();
+        final ObjectOutputStream out = new ObjectOutputStream(buffer);
+        out.writeObject(obj); out.close();
+        return buffer.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] bytes) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try { return in.readObject(); } finally { in.close(); }
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ProxySerializationBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j.benchmarks;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Builds throwables with synthetic (but realistic) stack-traces.
+ *
+ * @author kares
+ */
+public final class SyntheticThrowables {
+
+    // classes visible to the application loader
+    static final String[] RESOLVABLE = {
+        "java.util.concurrent.ThreadPoolExecutor",
+        "java.lang.reflect.Method",
+        "org.apache.logging.log4j.core.Logger",
+        "org.apache.logging.log4j.core.config.LoggerConfig",
+        "org.apache.logging.log4j.core.appender.ConsoleAppender",
+        "org.openjdk.jmh.runner.Runner",
+        "org.killbill.logging.log4j.YmprovedThrowablePatternConverter",
+        SyntheticThrowables.class.getName()
+    };
+
+    // valid class names that never resolve (generated / proxy classes)
+    static final String[] UNRESOLVABLE = {
+        "com.google.inject.internal.Foo$$EnhancerByGuice$$71f0ad02",
+        "org.killbill.billing.Dao$$FastClassByCGLIB$$8a3bc9ee",
+        "rubyjit.ActiveRecord$$disconnect_889690dc23468cf82b54ac9674be8ed625f8dbd1",
+        "com.sun.proxy.$Proxy42"
+    };
+
+    private SyntheticThrowables() { /* static only */ }
+
+    public static class SyntheticException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public SyntheticException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+
+    }
+
+    /**
+     * @param depth number of frames of the (outer-most) exception
+     * @param causes the cause chain length
+     * @param suppressed number of suppressed exceptions
+     * @param unresolvable whether to include (valid) class names that can not be loaded
+     * @return the throwable
+     */
+    public static Throwable newThrowable(final int depth, final int causes, final int suppressed, final boolean unresolvable) {
+        Throwable cause = null;
+        for ( int c = causes; c > 0; c-- ) {
+            cause = newThrowable("cause " + c, cause, depth + c * 5, unresolvable);
+        }
+        final Throwable throwable = newThrowable("synthetic", cause, depth, unresolvable);
+        for ( int s = 0; s < suppressed; s++ ) {
+            throwable.addSuppressed( newThrowable("suppressed " + s, null, depth / 2 + 1, unresolvable) );
+        }
+        return throwable;
+    }
+
+    private static Throwable newThrowable(final String message, final Throwable cause,
+        final int depth, final boolean unresolvable) {
+        final SyntheticException throwable = new SyntheticException(message, cause);
+        final StackTraceElement[] real = throwable.getStackTrace();
+        // keep the real (bottom) frames so caller stack alignment is realistic
+        final int realCount = Math.min(real.length, depth);
+        final StackTraceElement[] trace = new StackTraceElement[depth];
+        final int synthetic = depth - realCount;
+        for ( int i = 0; i < synthetic; i++ ) {
+            final String className;
+            if ( unresolvable && i % 3 == 1 ) className = UNRESOLVABLE[i % UNRESOLVABLE.length];
+            else className = RESOLVABLE[i % RESOLVABLE.length];
+            trace[i] = new StackTraceElement(className, "method" + ( i % 7 ), "Synthetic.java", 10 + i);
+        }
+        System.arraycopy(real, real.length - realCount, trace, synthetic, realCount);
+        throwable.setStackTrace(trace);
+        return throwable;
+    }
+
+    /**
+     * @return an isolated loader (not delegating to the application loader)
+     * seeing the Log4J core classes
+     */
+    public static ClassLoader newIsolatedLoader() {
+        final URL log4jCore = org.apache.logging.log4j.core.Logger.class.getProtectionDomain().getCodeSource().getLocation();
+        final URL log4jApi = org.apache.logging.log4j.Logger.class.getProtectionDomain().getCodeSource().getLocation();
+        return new URLClassLoader(new URL[] { log4jCore, log4jApi }, null);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.pattern.ExtendedThrowablePatternConverter;
+import org.apache.logging.log4j.core.pattern.LogEventPatternConverter;
+import org.apache.logging.log4j.core.pattern.ThrowablePatternConverter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.killbill.logging.log4j.YmprovedThrowablePatternConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares throwable rendering of %yEx against Log4J's %xEx and plain %ex.
+ *
+ * A new event is created per invocation since a {@link Log4jLogEvent} caches
+ * its (extended) throwable proxy. Throwables rotate through a pool larger than
+ * the converter's (per instance) rendered trace cache, so that each invocation
+ * renders rather than re-using the trace of the same throwable instance.
+ * Run using the GC profiler (<code>-prof gc</code>) to also see the allocation
+ * rate, {@link #main(String[])} does so by default.
+ *
+ * @author kares
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ThrowableRenderingBenchmark {
+
+    @Param({ "10", "100", "300" })
+    int depth;
+
+    @Param({ "0", "3" })
+    int causes;
+
+    @Param({ "0", "2" })
+    int suppressed;
+
+    @Param({ "false", "true" })
+    boolean unresolvable;
+
+    // with 2 loaders the thread's context loader is an isolated one
+    @Param({ "1", "2" })
+    int loaders;
+
+    // way more than the 32 rendered (same instance) traces %yEx remembers
+    private static final int POOL_SIZE = 256;
+
+    private final Throwable[] throwables = new Throwable[POOL_SIZE];
+    private int next;
+    private final Message message = new SimpleMessage("failure");
+    private final StringBuilder buffer = new StringBuilder(16 * 1024);
+
+    private LogEventPatternConverter yEx;
+    private LogEventPatternConverter xEx;
+    private LogEventPatternConverter ex;
+
+    private ClassLoader prevContextLoader;
+
+    @Setup
+    public void setup() {
+        for ( int i = 0; i < throwables.length; i++ ) {
+            throwables[i] = SyntheticThrowables.newThrowable(depth, causes, suppressed, unresolvable);
+        }
+
+        yEx = YmprovedThrowablePatternConverter.newInstance(null, null);
+        xEx = ExtendedThrowablePatternConverter.newInstance(null);
+        ex = ThrowablePatternConverter.newInstance(null);
+
+        prevContextLoader = Thread.currentThread().getContextClassLoader();
+        if ( loaders > 1 ) {
+            Thread.currentThread().setContextClassLoader( SyntheticThrowables.newIsolatedLoader() );
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Thread.currentThread().setContextClassLoader(prevContextLoader);
+    }
+
+    @Benchmark
+    public int yEx() {
+        return format(yEx);
+    }
+
+    @Benchmark
+    public int xEx() {
+        return format(xEx);
+    }
+
+    @Benchmark
+    public int ex() {
+        return format(ex);
+    }
+
+    private int format(final LogEventPatternConverter converter) {
+        final Throwable throwable = throwables[next]; next = ( next + 1 ) % POOL_SIZE;
+        final LogEvent event = new Log4jLogEvent("benchmark", null, null, Level.ERROR, message, throwable);
+        final StringBuilder buffer = this.buffer; buffer.setLength(0);
+        converter.format(event, buffer);
+        return buffer.length();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ThrowableRenderingBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Iterator;
+import java.util.Stack;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.ReflectionUtil;
+
+/**
+ * The (class) stack of the current thread, consumed from the outer-most frame
+ * while aligning with a throwable's frames.
+ *
+ * Captured using a <code>java.lang.StackWalker</code> when running on Java 9+
+ * (accessed using method handles, we compile against Java 8), otherwise falls
+ * back to Log4J's {@link ReflectionUtil#getCurrentStackTrace()}.
+ * Unlike the synchronized {@link Stack} it is backed by a plain array.
+ *
+ * @author kares
+ */
+final class CallerClasses {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final Class<?>[] EMPTY_CLASS_ARRAY = new Class<?>[0];
+
+    private static volatile boolean stackWalker = isStackWalkerAvailable();
+
+    // inner-most first
+    private final Class<?>[] classes;
+    private final int size;
+    // next (outer-most) class
+    private int index;
+
+    private CallerClasses(final Class<?>[] classes, final int size) {
+        this.classes = classes;
+        this.size = size;
+        this.index = size - 1;
+    }
+
+    static CallerClasses capture() {
+        if ( stackWalker ) {
+            try {
+                return Walker.capture();
+            }
+            catch (final SecurityException e) {
+                LOGGER.info("StackWalker (with class references) not permitted {}", e);
+                stackWalker = false;
+            }
+            catch (final ExceptionInInitializerError e) {
+                LOGGER.info("StackWalker (with class references) not available {}", e.getCause());
+                stackWalker = false;
+            }
+        }
+        final Stack<Class<?>> stack = ReflectionUtil.getCurrentStackTrace();
+        return new CallerClasses(stack.toArray(EMPTY_CLASS_ARRAY), stack.size());
+    }
+
+    /**
+     * @return the (outer-most) caller class or null if all were consumed
+     */
+    Class<?> peek() {
+        return index >= 0 ? classes[index] : null;
+    }
+
+    void pop() {
+        if ( index >= 0 ) index--;
+    }
+
+    int remaining() {
+        return index + 1;
+    }
+
+    /**
+     * @return whether captured using a StackWalker (false once it failed)
+     */
+    static boolean isStackWalker() {
+        return stackWalker;
+    }
+
+    private static boolean isStackWalkerAvailable() {
+        try {
+            Class.forName("java.lang.StackWalker");
+            return true;
+        }
+        catch (final ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // NOTE: only loaded when java.lang.StackWalker is available
+    private static final class Walker implements Function<Stream<?>, CallerClasses> {
+
+        private static final Object WALKER; // StackWalker.getInstance(RETAIN_CLASS_REFERENCE)
+        private static final MethodHandle WALK; // (StackWalker, Function) -> Object
+        private static final MethodHandle GET_DECLARING_CLASS; // (StackFrame) -> Class
+
+        static {
+            try {
+                final Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+                final Class<?> optionClass = Class.forName("java.lang.StackWalker$Option");
+                final Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+                final MethodHandles.Lookup lookup = MethodHandles.lookup(); // walk is caller-sensitive
+                final Object retainClassReference = optionClass.getField("RETAIN_CLASS_REFERENCE").get(null);
+                WALKER = lookup.findStatic(walkerClass, "getInstance", methodType(walkerClass, optionClass)).
+                    invoke(retainClassReference);
+                WALK = lookup.findVirtual(walkerClass, "walk", methodType(Object.class, Function.class)).
+                    asType(methodType(Object.class, Object.class, Function.class));
+                GET_DECLARING_CLASS = lookup.findVirtual(frameClass, "getDeclaringClass", methodType(Class.class)).
+                    asType(methodType(Class.class, Object.class));
+            }
+            catch (final RuntimeException e) { throw e; } // e.g. SecurityException
+            catch (final Error e) { throw e; }
+            catch (final Throwable e) { throw new IllegalStateException(e); }
+        }
+
+        private static final Function<Stream<?>, CallerClasses> INSTANCE = new Walker();
+
+        static CallerClasses capture() {
+            try {
+                return (CallerClasses) (Object) WALK.invokeExact(WALKER, INSTANCE);
+            }
+            catch (final RuntimeException e) { throw e; }
+            catch (final Error e) { throw e; }
+            catch (final Throwable e) { throw new IllegalStateException(e); }
+        }
+
+        @Override
+        public CallerClasses apply(final Stream<?> frames) {
+            Class<?>[] classes = new Class<?>[64]; int size = 0;
+            final Iterator<?> it = frames.iterator();
+            while ( it.hasNext() ) {
+                if ( size == classes.length ) {
+                    final Class<?>[] grown = new Class<?>[size * 2];
+                    System.arraycopy(classes, 0, grown, 0, size);
+                    classes = grown;
+                }
+                classes[size++] = declaringClass(it.next());
+            }
+            return new CallerClasses(classes, size);
+        }
+
+        private static Class<?> declaringClass(final Object frame) {
+            try {
+                return (Class<?>) GET_DECLARING_CLASS.invokeExact(frame);
+            }
+            catch (final RuntimeException e) { throw e; }
+            catch (final Error e) { throw e; }
+            catch (final Throwable e) { throw new IllegalStateException(e); }
+        }
+
+    }
+
+}
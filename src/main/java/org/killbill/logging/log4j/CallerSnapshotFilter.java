@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * A (neutral) filter taking a snapshot of the caller classes for logged throwables,
+ * to be used along with <code>%yEx{deferred}</code> so that packaging data is resolved
+ * when the event gets formatted (e.g. on the async appender's thread) while exact
+ * class matching still happens against the logging thread's stack.
+ *
+ * Configure on the async appender (runs on the logging thread before queuing) :
+ * <pre>
+ *   &lt;Async name="Async"&gt;
+ *     &lt;AppenderRef ref="File"/&gt;
+ *     &lt;CallerSnapshotFilter/&gt;
+ *   &lt;/Async&gt;
+ * </pre>
+ *
+ * @author kares
+ */
+@Plugin(name = "CallerSnapshotFilter", category = Node.CATEGORY, elementType = Filter.ELEMENT_TYPE, printObject = true)
+public final class CallerSnapshotFilter extends AbstractFilter {
+
+    private static final long serialVersionUID = 1L;
+
+    private CallerSnapshotFilter() {
+        super(Result.NEUTRAL, Result.NEUTRAL);
+    }
+
+    @Override
+    public Result filter(final LogEvent event) {
+        capture(event.getThrown());
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(final Logger logger, final Level level, final Marker marker, final Message msg, final Throwable t) {
+        capture(t);
+        return Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(final Logger logger, final Level level, final Marker marker, final Object msg, final Throwable t) {
+        capture(t);
+        return Result.NEUTRAL;
+    }
+
+    private static void capture(final Throwable thrown) {
+        if ( thrown != null ) CallerSnapshots.capture(thrown);
+    }
+
+    @PluginFactory
+    public static CallerSnapshotFilter createFilter() {
+        return new CallerSnapshotFilter();
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caller class snapshots taken on the logging thread, for packaging data to
+ * be resolved later (e.g. on an async appender's thread).
+ *
+ * A bounded (lock-free) table indexed by the throwable's identity hash with
+ * throwables weakly referenced, a colliding snapshot replaces the previous.
+ * Snapshots are taken (removed) once used since the captured classes would
+ * otherwise pin their loaders (e.g. of an un-deployed web-app) in the table,
+ * for the same reason snapshots never used are dropped once their throwable
+ * has been collected.
+ *
+ * @see CallerSnapshotFilter
+ *
+ * @author kares
+ */
+final class CallerSnapshots {
+
+    private static final class Entry extends WeakReference<Throwable> {
+
+        final int index;
+        final CallerClasses callers;
+
+        Entry(final Throwable throwable, final int index, final CallerClasses callers) {
+            super(throwable, collected);
+            this.index = index;
+            this.callers = callers;
+        }
+
+    }
+
+    private static final int SIZE = 256; // power of 2
+
+    private static final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(SIZE);
+    private static final ReferenceQueue<Throwable> collected = new ReferenceQueue<Throwable>();
+
+    private CallerSnapshots() { /* static only */ }
+
+    /**
+     * Snapshot the current thread's caller classes for the throwable,
+     * replacing a previous (not yet used) snapshot of a re-logged throwable.
+     * @param throwable the (logged) throwable
+     */
+    static void capture(final Throwable throwable) {
+        expungeCollected();
+        final int index = index(throwable);
+        entries.set(index, new Entry(throwable, index, CallerClasses.capture()));
+    }
+
+    /**
+     * Take the snapshot, the slot is cleared thus a snapshot is used once.
+     * @param throwable the throwable
+     * @return the captured caller classes or null if no snapshot is available
+     */
+    static CallerClasses take(final Throwable throwable) {
+        final int index = index(throwable);
+        final Entry entry = entries.get(index);
+        if ( entry == null ) return null;
+        final Throwable snapshotted = entry.get();
+        if ( snapshotted != throwable ) {
+            if ( snapshotted == null ) entries.compareAndSet(index, entry, null); // stale
+            return null;
+        }
+        entries.compareAndSet(index, entry, null);
+        return entry.callers;
+    }
+
+    // clear slots of snapshots never used, with their throwable collected
+    private static void expungeCollected() {
+        Reference<? extends Throwable> ref;
+        while ( ( ref = collected.poll() ) != null ) {
+            final Entry entry = (Entry) ref;
+            entries.compareAndSet(entry.index, entry, null);
+        }
+    }
+
+    /**
+     * @return the number of snapshots (not yet used) in the table
+     */
+    static int size() {
+        int size = 0;
+        for ( int i = 0; i < SIZE; i++ ) {
+            if ( entries.get(i) != null ) size++;
+        }
+        return size;
+    }
+
+    private static int index(final Throwable throwable) {
+        return System.identityHashCode(throwable) & (SIZE - 1);
+    }
+
+}
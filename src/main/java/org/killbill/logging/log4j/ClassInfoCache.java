@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.impl.ExtendedClassInfo;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Process wide (packaging) class information cache shared by all proxies.
+ *
+ * Entries are grouped per (weakly held) class-loader and keyed by class name,
+ * values never reference a class or a loader thus a (web-app) loader can still
+ * be collected on re-deploy. We do not use a {@link ClassValue} here since its
+ * values are held by the (key) class and with the extension loaded along-side
+ * a web-app a value hanging off a system class would pin the web-app's loader.
+ *
+ * Entries are shared by all classes of a code source (jar), its version is
+ * resolved once - when the package does not tell the implementation version
+ * the jar's manifest and maven (pom.properties) meta-data are read.
+ *
+ * @author kares
+ */
+final class ClassInfoCache {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    static final String UNKNOWN = "?";
+
+    static final ExtendedClassInfo UNKNOWN_INFO = new ExtendedClassInfo(false, UNKNOWN, UNKNOWN);
+
+    /**
+     * Interned exact and non-exact flavors of the class information.
+     */
+    static final class Entry {
+
+        final ExtendedClassInfo exact;
+        final ExtendedClassInfo inexact;
+
+        Entry(final String location, final String version) {
+            this.exact = new ExtendedClassInfo(true, location, version);
+            this.inexact = new ExtendedClassInfo(false, location, version);
+        }
+
+        ExtendedClassInfo get(final boolean exact) {
+            return exact ? this.exact : this.inexact;
+        }
+
+    }
+
+    private static final Map<ClassLoader, ConcurrentMap<String, Entry>> loaderEntries =
+        new WeakHashMap<ClassLoader, ConcurrentMap<String, Entry>>();
+    // boot loader (null) entries - most frames, resolved without locking
+    private static final ConcurrentMap<String, Entry> bootEntries = new ConcurrentHashMap<String, Entry>(256);
+
+    // entries per code source location (URL) - shared by all classes from a jar
+    private static final ConcurrentMap<String, Entry> codeSourceEntries = new ConcurrentHashMap<String, Entry>(64);
+
+    private ClassInfoCache() { /* static only */ }
+
+    static ExtendedClassInfo getClassInfo(final Class<?> clazz, final boolean exact) {
+        if ( clazz == null ) return UNKNOWN_INFO;
+        return getEntry(clazz).get(exact);
+    }
+
+    static Entry getEntry(final Class<?> clazz) {
+        return getEntry(entriesFor(clazz.getClassLoader()), clazz);
+    }
+
+    /**
+     * @param entries as returned from {@link #entriesFor(ClassLoader)} for the class' loader
+     */
+    static Entry getEntry(final ConcurrentMap<String, Entry> entries, final Class<?> clazz) {
+        final String className = clazz.getName();
+        Entry entry = entries.get(className);
+        if ( entry == null ) {
+            entry = newEntry(clazz);
+            final Entry prev = entries.putIfAbsent(className, entry);
+            if ( prev != null ) entry = prev;
+        }
+        return entry;
+    }
+
+    /**
+     * Entries of a loader, callers resolving several classes should hold on to
+     * these (for a run of frames from the same loader) as the lookup is guarded.
+     *
+     * @param loader the class loader (null for the boot loader)
+     * @return the (concurrent) entries for the loader
+     */
+    static ConcurrentMap<String, Entry> entriesFor(final ClassLoader loader) {
+        if ( loader == null ) return bootEntries;
+        synchronized (loaderEntries) {
+            ConcurrentMap<String, Entry> entries = loaderEntries.get(loader);
+            if ( entries == null ) {
+                entries = new ConcurrentHashMap<String, Entry>(64);
+                loaderEntries.put(loader, entries);
+            }
+            return entries;
+        }
+    }
+
+    static void clear() {
+        synchronized (loaderEntries) { loaderEntries.clear(); }
+        bootEntries.clear();
+        codeSourceEntries.clear();
+    }
+
+    private static Entry newEntry(final Class<?> clazz) {
+        URL locationURL = null;
+        try {
+            final CodeSource source = clazz.getProtectionDomain().getCodeSource();
+            if (source != null) locationURL = source.getLocation();
+        }
+        catch (final Exception e) {
+            LOGGER.debug("code source location for class {} failed {}", clazz, e);
+        }
+
+        if ( locationURL == null ) return new Entry(UNKNOWN, packageVersion(clazz, UNKNOWN));
+
+        final String key = locationURL.toString();
+        Entry entry = codeSourceEntries.get(key);
+        if ( entry == null ) { // first class seen from the jar
+            String version = packageVersion(clazz, null);
+            if ( version == null ) version = resolveVersion(locationURL);
+            entry = new Entry(toLocation(locationURL), version == null ? UNKNOWN : version);
+            final Entry prev = codeSourceEntries.putIfAbsent(key, entry);
+            if ( prev != null ) entry = prev;
+        }
+        return entry;
+    }
+
+    /**
+     * Resolve the (shared) entry for a code source up-front.
+     *
+     * @param locationURL code source location (as in the class' protection domain)
+     * @return true if resolved now, false if it was already known
+     */
+    static boolean prewarm(final URL locationURL) {
+        final String key = locationURL.toString();
+        if ( codeSourceEntries.containsKey(key) ) return false;
+        final String version = resolveVersion(locationURL);
+        final Entry entry = new Entry(toLocation(locationURL), version == null ? UNKNOWN : version);
+        return codeSourceEntries.putIfAbsent(key, entry) == null;
+    }
+
+    private static String packageVersion(final Class<?> clazz, final String defaultVersion) {
+        final Package pkg = clazz.getPackage();
+        if (pkg != null) {
+            final String ver = pkg.getImplementationVersion();
+            if (ver != null) {
+                return ver;
+            }
+        }
+        return defaultVersion;
+    }
+
+    /**
+     * Resolve the version from a jar (or class directory) manifest's
+     * Implementation-Version/Bundle-Version or from maven's pom.properties.
+     *
+     * @param locationURL code source location
+     * @return the version or null
+     */
+    static String resolveVersion(final URL locationURL) {
+        if ( ! "file".equals(locationURL.getProtocol()) ) return null;
+        try {
+            final File file = new File(locationURL.toURI());
+            if ( file.isDirectory() ) return resolveDirectoryVersion(file);
+            if ( file.isFile() ) return resolveJarVersion(file);
+        }
+        catch (final URISyntaxException e) {
+            LOGGER.debug("version for {} failed {}", locationURL, e);
+        }
+        catch (final IOException e) {
+            LOGGER.debug("version for {} failed {}", locationURL, e);
+        }
+        catch (final RuntimeException e) { // e.g. SecurityException
+            LOGGER.debug("version for {} failed {}", locationURL, e);
+        }
+        return null;
+    }
+
+    private static String resolveJarVersion(final File file) throws IOException {
+        final JarFile jar = new JarFile(file, false);
+        try {
+            final String version = manifestVersion(jar.getManifest());
+            if ( version != null ) return version;
+
+            final String name = file.getName();
+            String firstVersion = null;
+            final Enumeration<JarEntry> entries = jar.entries();
+            while ( entries.hasMoreElements() ) {
+                final JarEntry entry = entries.nextElement();
+                final String entryName = entry.getName();
+                if ( entryName.startsWith("META-INF/maven/") && entryName.endsWith("/pom.properties") ) {
+                    final Properties pom = loadProperties(jar.getInputStream(entry));
+                    final String ver = pom.getProperty("version");
+                    if ( ver == null ) continue;
+                    // shaded jars include several, prefer the jar's own artifact
+                    final String artifactId = pom.getProperty("artifactId");
+                    if ( artifactId != null && name.startsWith(artifactId + '-') ) return ver;
+                    if ( firstVersion == null ) firstVersion = ver;
+                }
+            }
+            return firstVersion;
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    private static String resolveDirectoryVersion(final File dir) throws IOException {
+        final File manifest = new File(dir, JarFile.MANIFEST_NAME);
+        if ( manifest.isFile() ) {
+            final InputStream in = new FileInputStream(manifest);
+            try {
+                final String version = manifestVersion(new Manifest(in));
+                if ( version != null ) return version;
+            }
+            finally { in.close(); }
+        }
+        final File[] groups = new File(dir, "META-INF/maven").listFiles();
+        if ( groups == null ) return null;
+        for ( final File group : groups ) {
+            final File[] artifacts = group.listFiles();
+            if ( artifacts == null ) continue;
+            for ( final File artifact : artifacts ) {
+                final File pom = new File(artifact, "pom.properties");
+                if ( pom.isFile() ) {
+                    final String version = loadProperties(new FileInputStream(pom)).getProperty("version");
+                    if ( version != null ) return version;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String manifestVersion(final Manifest manifest) {
+        if ( manifest == null ) return null;
+        final Attributes attributes = manifest.getMainAttributes();
+        String version = attributes.getValue(Attributes.Name.IMPLEMENTATION_VERSION);
+        if ( version == null ) version = attributes.getValue("Bundle-Version");
+        return version;
+    }
+
+    private static Properties loadProperties(final InputStream in) throws IOException {
+        try {
+            final Properties properties = new Properties();
+            properties.load(in);
+            return properties;
+        }
+        finally { in.close(); }
+    }
+
+    private static String toLocation(final URL locationURL) {
+        final String str = locationURL.toString().replace('\\', '/');
+        int index = str.lastIndexOf('/');
+        if (index >= 0 && index == str.length() - 1) {
+            index = str.lastIndexOf('/', index - 1);
+        }
+        return str.substring(index + 1);
+    }
+
+}
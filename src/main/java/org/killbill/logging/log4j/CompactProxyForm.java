@@ -0,0 +1,370 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.core.impl.ExtendedClassInfo;
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * The serialized form of an {@link EnhancedThrowableProxy} (including its causes
+ * and suppressed proxies) with a string table shared by the whole proxy tree.
+ *
+ * Strings (class names, methods, files, locations, versions) are written once
+ * and later referenced by index, all numbers are written as var-ints.
+ * Frames repeated due recursion are not written at all.
+ *
+ * @author kares
+ */
+final class CompactProxyForm implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int VERSION = 1;
+
+    private static final int PACKAGING = 1;
+    private static final int RECURSION = 2;
+    private static final int CAUSE = 4;
+    private static final int MODULES = 8; // frames carry (Java 9+) loader and module names
+    private static final int COLLAPSED = 16;
+
+    private static final boolean moduleInfo = isModuleInfoAvailable();
+
+    // sanity limits checked before allocating on read, a corrupt (or crafted) stream
+    // should fail fast instead of exhausting memory (or the stack with nested causes)
+    static final int MAX_FRAMES = 1 << 16;
+    static final int MAX_SUPPRESSED = 1 << 12;
+    static final int MAX_NESTING = 1 << 10; // causes and suppressed (depth)
+    static final int MAX_STRING_LENGTH = 1 << 24;
+
+    // string references: 0 - null, 1 - a new string follows, N - table[N - 2]
+    private static final int NULL_STRING = 0;
+    private static final int NEW_STRING = 1;
+
+    private EnhancedThrowableProxy proxy;
+
+    /**
+     * For de-serialization.
+     */
+    public CompactProxyForm() { /* Externalizable */ }
+
+    CompactProxyForm(final EnhancedThrowableProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        if ( proxy == null ) throw new InvalidObjectException("no proxy read");
+        return proxy;
+    }
+
+    @Override
+    public void writeExternal(final ObjectOutput out) throws IOException {
+        writeVarInt(out, VERSION);
+        writeProxy(out, proxy, new HashMap<String, Integer>(64));
+    }
+
+    @Override
+    public void readExternal(final ObjectInput in) throws IOException {
+        final int version = readVarInt(in);
+        if ( version != VERSION ) throw new InvalidObjectException("unsupported version: " + version);
+        proxy = readProxy(in, new ArrayList<String>(64), new HashMap<Long, ExtendedClassInfo>(), 0);
+    }
+
+    private static void writeProxy(final ObjectOutput out, final EnhancedThrowableProxy proxy,
+        final Map<String, Integer> strings) throws IOException {
+        final boolean packaging = proxy.isPackaging();
+        final RecursionFold fold = proxy.getRecursionFold();
+        final EnhancedThrowableProxy cause = proxy.getCauseProxy();
+        final BitSet collapsed = proxy.getCollapsedFrames();
+
+        writeString(out, proxy.getName(), strings);
+        writeString(out, proxy.getMessage(), strings);
+        writeVarInt(out, proxy.getCommonElementCount());
+        writeVarInt(out, ( packaging ? PACKAGING : 0 ) | ( fold != null ? RECURSION : 0 ) |
+                         ( cause != null ? CAUSE : 0 ) | ( moduleInfo ? MODULES : 0 ) | ( collapsed != null ? COLLAPSED : 0 ));
+        if ( fold != null ) {
+            writeVarInt(out, fold.start); writeVarInt(out, fold.period); writeVarInt(out, fold.count);
+        }
+
+        final ExtendedStackTraceElement[] frames = proxy.getExtendedStackTrace();
+        writeVarInt(out, frames.length);
+        for ( int i = 0; i < frames.length; i++ ) {
+            if ( fold != null && fold.isRepeated(i) ) continue;
+            final ExtendedStackTraceElement frame = frames[i];
+            writeString(out, frame.getClassName(), strings);
+            writeString(out, frame.getMethodName(), strings);
+            writeString(out, frame.getFileName(), strings);
+            final int line = frame.getLineNumber();
+            writeVarInt(out, ( line << 1 ) ^ ( line >> 31 )); // zig-zag (native methods have -2)
+            if ( moduleInfo ) ModuleInfo.write(out, frame.getStackTraceElement(), strings);
+            if ( packaging ) {
+                final ExtendedClassInfo info = frame.getExtraClassInfo();
+                writeString(out, info.getLocation(), strings);
+                writeString(out, info.getVersion(), strings);
+                out.writeBoolean(info.getExact());
+            }
+        }
+        if ( collapsed != null ) { // index deltas
+            writeVarInt(out, collapsed.cardinality());
+            int prev = -1;
+            for ( int i = collapsed.nextSetBit(0); i >= 0; i = collapsed.nextSetBit(i + 1) ) {
+                writeVarInt(out, i - prev); prev = i;
+            }
+        }
+
+        final EnhancedThrowableProxy[] suppressed = proxy.getSuppressedProxies();
+        final int suppressedCount = suppressed == null ? 0 : suppressed.length;
+        writeVarInt(out, suppressedCount);
+        for ( int i = 0; i < suppressedCount; i++ ) writeProxy(out, suppressed[i], strings);
+
+        if ( cause != null ) writeProxy(out, cause, strings);
+    }
+
+    private static EnhancedThrowableProxy readProxy(final ObjectInput in, final List<String> strings,
+        final Map<Long, ExtendedClassInfo> infos, final int depth) throws IOException {
+        if ( depth > MAX_NESTING ) throw new StreamCorruptedException("proxies nested too deep: " + depth);
+        final String name = readString(in, strings);
+        final String message = readString(in, strings);
+        final int commonElementCount = readVarInt(in);
+        final int flags = readVarInt(in);
+        final boolean packaging = ( flags & PACKAGING ) != 0;
+        final boolean modules = ( flags & MODULES ) != 0;
+        final RecursionFold fold;
+        if ( ( flags & RECURSION ) != 0 ) {
+            fold = new RecursionFold(readVarInt(in), readVarInt(in), readVarInt(in));
+        }
+        else {
+            fold = null;
+        }
+
+        final int length = readVarInt(in);
+        if ( length < 0 || length > MAX_FRAMES ) throw new StreamCorruptedException("invalid frame count: " + length);
+        if ( fold != null && ( fold.start < 0 || fold.period <= 0 || fold.count <= 0 || fold.foldEnd() > length ) ) {
+            throw new StreamCorruptedException("invalid recursion: " + fold.start + ", " + fold.period + ", " + fold.count);
+        }
+        final ExtendedStackTraceElement[] frames = new ExtendedStackTraceElement[length];
+        for ( int i = 0; i < length; i++ ) {
+            if ( fold != null && fold.isRepeated(i) ) continue;
+            final String className = readString(in, strings);
+            final String methodName = readString(in, strings);
+            final String fileName = readString(in, strings);
+            final int zigZag = readVarInt(in);
+            final int line = ( zigZag >>> 1 ) ^ -( zigZag & 1 );
+            final StackTraceElement element;
+            if ( modules ) {
+                final String loaderName = readString(in, strings);
+                final String moduleName = readString(in, strings);
+                final String moduleVersion = readString(in, strings);
+                if ( moduleInfo ) {
+                    element = ModuleInfo.newElement(loaderName, moduleName, moduleVersion, className, methodName, fileName, line);
+                }
+                else { // written on Java 9+
+                    element = new StackTraceElement(className, methodName, fileName, line);
+                }
+            }
+            else {
+                element = new StackTraceElement(className, methodName, fileName, line);
+            }
+            final ExtendedClassInfo info;
+            if ( packaging ) {
+                final int location = readStringIndex(in, strings);
+                final int version = readStringIndex(in, strings);
+                final boolean exact = in.readBoolean();
+                final Long key = ( ( (long) location << 32 ) | version ) << 1 | ( exact ? 1 : 0 );
+                ExtendedClassInfo cached = infos.get(key);
+                if ( cached == null ) {
+                    cached = new ExtendedClassInfo(exact, stringAt(strings, location), stringAt(strings, version));
+                    infos.put(key, cached);
+                }
+                info = cached;
+            }
+            else {
+                info = ClassInfoCache.UNKNOWN_INFO;
+            }
+            frames[i] = new ExtendedStackTraceElement(element, info);
+        }
+        if ( fold != null ) { // repeated frames refer to ones from a later cycle
+            for ( int i = fold.foldEnd() - fold.period - 1; i >= fold.start; i-- ) frames[i] = frames[i + fold.period];
+        }
+        BitSet collapsed = null;
+        if ( ( flags & COLLAPSED ) != 0 ) {
+            final int count = readVarInt(in);
+            if ( count < 0 || count > length ) throw new StreamCorruptedException("invalid collapsed count: " + count);
+            collapsed = new BitSet(length);
+            for ( int i = 0, index = -1; i < count; i++ ) {
+                index += readVarInt(in);
+                if ( index < 0 || index >= length ) throw new StreamCorruptedException("invalid collapsed frame: " + index);
+                collapsed.set(index);
+            }
+        }
+
+        final int suppressedCount = readVarInt(in);
+        if ( suppressedCount < 0 || suppressedCount > MAX_SUPPRESSED ) {
+            throw new StreamCorruptedException("invalid suppressed count: " + suppressedCount);
+        }
+        final EnhancedThrowableProxy[] suppressed;
+        if ( suppressedCount == 0 ) {
+            suppressed = EnhancedThrowableProxy.EMPTY_THROWABLE_PROXY_ARRAY;
+        }
+        else {
+            suppressed = new EnhancedThrowableProxy[suppressedCount];
+            for ( int i = 0; i < suppressedCount; i++ ) suppressed[i] = readProxy(in, strings, infos, depth + 1);
+        }
+
+        final EnhancedThrowableProxy cause = ( flags & CAUSE ) != 0 ? readProxy(in, strings, infos, depth + 1) : null;
+        return new EnhancedThrowableProxy(name, message, commonElementCount, frames, packaging, fold, collapsed, cause, suppressed);
+    }
+
+    private static void writeString(final ObjectOutput out, final String str, final Map<String, Integer> strings) throws IOException {
+        if ( str == null ) { writeVarInt(out, NULL_STRING); return; }
+
+        final Integer index = strings.get(str);
+        if ( index != null ) { writeVarInt(out, index + 2); return; }
+
+        strings.put(str, strings.size());
+        writeVarInt(out, NEW_STRING);
+        final int len = str.length();
+        writeVarInt(out, len);
+        for ( int i = 0; i < len; i++ ) writeVarInt(out, str.charAt(i));
+    }
+
+    private static String readString(final ObjectInput in, final List<String> strings) throws IOException {
+        return stringAt(strings, readStringIndex(in, strings));
+    }
+
+    // returns the table index + 1 (0 for null)
+    private static int readStringIndex(final ObjectInput in, final List<String> strings) throws IOException {
+        final int ref = readVarInt(in);
+        if ( ref == NULL_STRING ) return 0;
+        if ( ref == NEW_STRING ) {
+            final int len = readVarInt(in);
+            if ( len < 0 || len > MAX_STRING_LENGTH ) throw new StreamCorruptedException("invalid string length: " + len);
+            final StringBuilder str = new StringBuilder(Math.min(len, 256)); // grows with what is actually read
+            for ( int i = 0; i < len; i++ ) str.append((char) readVarInt(in));
+            strings.add(str.toString());
+            return strings.size();
+        }
+        if ( ref < 0 || ref - 2 >= strings.size() ) throw new StreamCorruptedException("invalid string reference: " + ref);
+        return ref - 1;
+    }
+
+    private static String stringAt(final List<String> strings, final int index) {
+        return index == 0 ? null : strings.get(index - 1);
+    }
+
+    private static boolean isModuleInfoAvailable() {
+        try {
+            StackTraceElement.class.getMethod("getModuleName");
+            return true;
+        }
+        catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // NOTE: only loaded when running on Java 9+ (accessed using method handles, we compile against Java 8)
+    private static final class ModuleInfo {
+
+        private static final MethodHandle GET_CLASS_LOADER_NAME = getter("getClassLoaderName");
+        private static final MethodHandle GET_MODULE_NAME = getter("getModuleName");
+        private static final MethodHandle GET_MODULE_VERSION = getter("getModuleVersion");
+        private static final MethodHandle NEW_ELEMENT;
+
+        static {
+            try {
+                NEW_ELEMENT = MethodHandles.publicLookup().findConstructor(StackTraceElement.class, methodType(void.class,
+                    String.class, String.class, String.class, String.class, String.class, String.class, int.class));
+            }
+            catch (final ReflectiveOperationException e) { throw new IllegalStateException(e); }
+        }
+
+        private static MethodHandle getter(final String name) {
+            try {
+                return MethodHandles.publicLookup().findVirtual(StackTraceElement.class, name, methodType(String.class));
+            }
+            catch (final ReflectiveOperationException e) { throw new IllegalStateException(e); }
+        }
+
+        // only writes what the element's toString shows (built-in loaders and JDK module versions are not)
+        static void write(final ObjectOutput out, final StackTraceElement element, final Map<String, Integer> strings) throws IOException {
+            String loaderName = invoke(GET_CLASS_LOADER_NAME, element);
+            String moduleVersion = invoke(GET_MODULE_VERSION, element);
+            if ( loaderName != null || moduleVersion != null ) {
+                final String str = element.toString();
+                if ( loaderName != null && ! str.startsWith(loaderName + '/') ) loaderName = null;
+                if ( moduleVersion != null && str.indexOf('@' + moduleVersion + '/') == -1 ) moduleVersion = null;
+            }
+            writeString(out, loaderName, strings);
+            writeString(out, invoke(GET_MODULE_NAME, element), strings);
+            writeString(out, moduleVersion, strings);
+        }
+
+        static StackTraceElement newElement(final String loaderName, final String moduleName, final String moduleVersion,
+            final String className, final String methodName, final String fileName, final int line) {
+            try {
+                return (StackTraceElement) NEW_ELEMENT.invokeExact(loaderName, moduleName, moduleVersion, className, methodName, fileName, line);
+            }
+            catch (final RuntimeException e) { throw e; }
+            catch (final Error e) { throw e; }
+            catch (final Throwable e) { throw new IllegalStateException(e); }
+        }
+
+        private static String invoke(final MethodHandle getter, final StackTraceElement element) {
+            try {
+                return (String) getter.invokeExact(element);
+            }
+            catch (final RuntimeException e) { throw e; }
+            catch (final Error e) { throw e; }
+            catch (final Throwable e) { throw new IllegalStateException(e); }
+        }
+
+    }
+
+    static void writeVarInt(final ObjectOutput out, int value) throws IOException {
+        while ( ( value & ~0x7F ) != 0 ) {
+            out.writeByte(( value & 0x7F ) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(final ObjectInput in) throws IOException {
+        int value = 0;
+        for ( int shift = 0; shift < 32; shift += 7 ) {
+            final int b = in.readByte();
+            value |= ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 ) return value;
+        }
+        throw new StreamCorruptedException("malformed var-int");
+    }
+
+}
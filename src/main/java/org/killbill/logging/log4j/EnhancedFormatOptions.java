@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * %yEx specific options, these are handled before the (standard) options get
+ * passed to {@link org.apache.logging.log4j.core.impl.ThrowableFormatOptions}.
+ *
+ * <ul>
+ *   <li><code>dedupe(windowSeconds,maxTraces)</code> - print (structurally) same traces
+ *   once per window, repeated ones are logged as a single reference line</li>
+ *   <li><code>nopackaging</code> - no [jar:version] suffix, no class loading at all</li>
+ *   <li><code>deferred</code> - do not capture the caller's stack while formatting, use the
+ *   snapshot taken by {@link CallerSnapshotFilter} (if there's none frames are not exact)</li>
+ *   <li><code>budget(maxChars,maxFrames)</code> - limit the output of a single trace, keeps the
+ *   top frames of the outer-most exception and of the root cause</li>
+ *   <li><code>rootfirst</code> - print the root cause first followed by "Wrapped by: " ones</li>
+ *   <li><code>ratelimit(perSecond,burst,com.acme.PaymentException=perSecond)</code> - limit traces
+ *   printed per exception type and top frames, over the limit a single summary line is printed,
+ *   rates might be given for all or specific exception classes (and their sub-classes)</li>
+ *   <li><code>prewarm(budgetMillis,com.acme.,org.hibernate.)</code> - fill class information caches
+ *   in the background on start-up, see {@link ThrowableCacheWarmer}</li>
+ *   <li><code>policy(com.acme.ClientAbortException=3,com.acme.ControlFlow=none,java.sql.SQLException=full)</code>
+ *   - lines, packaging and filters per exception class (and its sub-classes) e.g.
+ *   <code>3:nopackaging:filters=org.jboss;sun.reflect</code>, see {@link TracePolicies}</li>
+ *   <li><code>collapse(defaults,com.acme.Dispatcher#invoke,*$$Proxy)</code> - collapse noise frames
+ *   (never resolved, printed as suppressed), without arguments the default rules (reflection, CGLIB/Guice
+ *   proxies, Jersey dispatch, JRuby interpreter) apply, see {@link FrameCollapser}</li>
+ * </ul>
+ *
+ * @author kares
+ */
+final class EnhancedFormatOptions {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    static final String DEDUPE = "dedupe";
+    static final String NO_PACKAGING = "nopackaging";
+    static final String DEFERRED = "deferred";
+    static final String BUDGET = "budget";
+    static final String ROOT_FIRST = "rootfirst";
+    static final String RATE_LIMIT = "ratelimit";
+    static final String PREWARM = "prewarm";
+    static final String POLICY = "policy";
+    static final String COLLAPSE = "collapse";
+
+    private static final String[] KEYS = { DEDUPE, NO_PACKAGING, DEFERRED, BUDGET, ROOT_FIRST, RATE_LIMIT, PREWARM, POLICY, COLLAPSE };
+
+    static final EnhancedFormatOptions DEFAULT = new EnhancedFormatOptions();
+
+    private long dedupeWindowMillis = -1; // disabled
+    private int dedupeMaxSize = 1000;
+    private boolean packaging = true;
+    private boolean deferred;
+    private TraceBudget budget = TraceBudget.UNLIMITED;
+    private double ratePerSecond; // 0 - not limited
+    private int rateBurst = 1;
+    private Map<String, Double> classRates;
+    private long prewarmMillis; // 0 - no pre-warming
+    private List<String> prewarmPackages;
+    private Map<String, TracePolicies.Spec> policies;
+    private List<String> collapseRules;
+
+    private EnhancedFormatOptions() { /* defaults */ }
+
+    static EnhancedFormatOptions newInstance(final String[] options) {
+        if ( options == null || options.length == 0 ) return DEFAULT;
+
+        EnhancedFormatOptions result = null;
+        for ( final String option : options ) {
+            final String key = keyOf(option);
+            if ( key == null ) continue;
+            if ( result == null ) result = new EnhancedFormatOptions();
+            final String[] args = argumentsOf(option, key);
+            try {
+                if ( key == DEDUPE ) {
+                    result.dedupeWindowMillis = args.length > 0 ? Long.parseLong(args[0]) * 1000 : 60 * 1000;
+                    if ( args.length > 1 ) result.dedupeMaxSize = Integer.parseInt(args[1]);
+                }
+                else if ( key == NO_PACKAGING ) {
+                    result.packaging = false;
+                }
+                else if ( key == DEFERRED ) {
+                    result.deferred = true;
+                }
+                else if ( key == BUDGET ) {
+                    final int maxChars = args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024;
+                    final int maxFrames = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+                    result.budget = new TraceBudget(maxChars, maxFrames, result.budget.rootCauseFirst);
+                }
+                else if ( key == ROOT_FIRST ) {
+                    result.budget = new TraceBudget(result.budget.maxChars, result.budget.maxFrames, true);
+                }
+                else if ( key == RATE_LIMIT ) {
+                    int positional = 0;
+                    for ( final String arg : args ) {
+                        final int eq = arg.indexOf('=');
+                        if ( eq > 0 ) { // com.acme.PaymentException=1
+                            if ( result.classRates == null ) result.classRates = new HashMap<String, Double>();
+                            result.classRates.put(arg.substring(0, eq).trim(), parseRate(arg.substring(eq + 1)));
+                        }
+                        else if ( positional++ == 0 ) result.ratePerSecond = parseRate(arg);
+                        else result.rateBurst = Integer.parseInt(arg);
+                    }
+                    if ( positional == 0 && result.classRates == null ) result.ratePerSecond = 1;
+                }
+                else if ( key == PREWARM ) {
+                    result.prewarmMillis = args.length > 0 ? Long.parseLong(args[0]) : 10 * 1000;
+                    result.prewarmPackages = new ArrayList<String>();
+                    for ( int i = 1; i < args.length; i++ ) result.prewarmPackages.add(args[i]);
+                }
+                else if ( key == POLICY ) {
+                    for ( final String arg : args ) {
+                        final int eq = arg.indexOf('=');
+                        if ( eq <= 0 ) throw new IllegalArgumentException("policy not in a Class=spec form: " + arg);
+                        if ( result.policies == null ) result.policies = new LinkedHashMap<String, TracePolicies.Spec>();
+                        result.policies.put(arg.substring(0, eq).trim(), TracePolicies.Spec.parse(arg.substring(eq + 1)));
+                    }
+                }
+                else if ( key == COLLAPSE ) {
+                    if ( result.collapseRules == null ) result.collapseRules = new ArrayList<String>();
+                    if ( args.length == 0 ) result.collapseRules.addAll(FrameCollapser.DEFAULT_RULES);
+                    for ( final String arg : args ) {
+                        if ( arg.equalsIgnoreCase("defaults") ) result.collapseRules.addAll(FrameCollapser.DEFAULT_RULES);
+                        else result.collapseRules.add(arg);
+                    }
+                }
+            }
+            catch (final IllegalArgumentException e) { // NumberFormatException
+                LOGGER.error("invalid %yEx option: {} ({})", option, e.getMessage());
+            }
+        }
+        return result == null ? DEFAULT : result;
+    }
+
+    private static double parseRate(final String rate) {
+        final double perSecond = Double.parseDouble(rate.trim());
+        if ( ! ( perSecond > 0 ) ) throw new NumberFormatException("rate not positive: " + rate);
+        return perSecond;
+    }
+
+    /**
+     * @param options the converter options
+     * @return options without the ones handled here
+     */
+    static String[] standardOptions(final String[] options) {
+        if ( options == null || options.length == 0 ) return options;
+
+        List<String> standard = null;
+        for ( int i = 0; i < options.length; i++ ) {
+            if ( keyOf(options[i]) != null ) {
+                if ( standard == null ) {
+                    standard = new ArrayList<String>(options.length);
+                    for ( int j = 0; j < i; j++ ) standard.add(options[j]);
+                }
+            }
+            else if ( standard != null ) standard.add(options[i]);
+        }
+        return standard == null ? options : standard.toArray(new String[standard.size()]);
+    }
+
+    private static String keyOf(final String option) {
+        if ( option == null ) return null;
+        final String opt = option.trim();
+        for ( final String key : KEYS ) {
+            if ( opt.equalsIgnoreCase(key) ) return key;
+            if ( opt.regionMatches(true, 0, key, 0, key.length()) &&
+                 opt.length() > key.length() && opt.charAt(key.length()) == '(' ) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static String[] argumentsOf(final String option, final String key) {
+        final String opt = option.trim();
+        if ( opt.length() <= key.length() + 1 || ! opt.endsWith(")") ) return new String[0];
+        final String args = opt.substring(key.length() + 1, opt.length() - 1).trim();
+        if ( args.isEmpty() ) return new String[0];
+        final String[] split = args.split(",");
+        for ( int i = 0; i < split.length; i++ ) split[i] = split[i].trim();
+        return split;
+    }
+
+    boolean isDedupe() { return dedupeWindowMillis > 0; }
+
+    long getDedupeWindowMillis() { return dedupeWindowMillis; }
+
+    int getDedupeMaxSize() { return dedupeMaxSize; }
+
+    boolean isPackaging() { return packaging; }
+
+    boolean isDeferred() { return deferred; }
+
+    TraceBudget getBudget() { return budget; }
+
+    boolean isPrewarm() { return prewarmMillis > 0; }
+
+    long getPrewarmMillis() { return prewarmMillis; }
+
+    List<String> getPrewarmPackages() { return prewarmPackages; }
+
+    /**
+     * @param lines the (converter's) line limit
+     * @param packages the (converter's) ignored packages
+     * @return policies with the default one built from the given options
+     */
+    TracePolicies newTracePolicies(final int lines, final Collection<String> packages) {
+        final TracePolicies.Policy defaultPolicy = new TracePolicies.Policy(lines, packaging, PackageMatcher.compile(packages));
+        return new TracePolicies(defaultPolicy, packages, policies);
+    }
+
+    FrameCollapser newFrameCollapser() {
+        return FrameCollapser.compile(collapseRules);
+    }
+
+    boolean isRateLimited() { return ratePerSecond > 0 || classRates != null; }
+
+    TraceRateLimiter newRateLimiter() {
+        final TraceRateLimiter.Limit defaultLimit = ratePerSecond > 0 ? new TraceRateLimiter.Limit(ratePerSecond, rateBurst) : null;
+        Map<String, TraceRateLimiter.Limit> classLimits = null;
+        if ( classRates != null ) {
+            classLimits = new HashMap<String, TraceRateLimiter.Limit>(classRates.size());
+            for ( final Map.Entry<String, Double> entry : classRates.entrySet() ) {
+                classLimits.put(entry.getKey(), new TraceRateLimiter.Limit(entry.getValue(), rateBurst));
+            }
+        }
+        return new TraceRateLimiter(defaultLimit, classLimits);
+    }
+
+}
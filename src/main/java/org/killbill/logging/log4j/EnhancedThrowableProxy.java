@@ -15,15 +15,17 @@
  */
 package org.killbill.logging.log4j;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.net.URL;
-import java.security.CodeSource;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.impl.ExtendedClassInfo;
@@ -32,7 +34,6 @@ import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
 import org.apache.logging.log4j.core.util.Loader;
 import org.apache.logging.log4j.core.util.Throwables;
 import org.apache.logging.log4j.status.StatusLogger;
-import org.apache.logging.log4j.util.ReflectionUtil;
 //import org.apache.logging.log4j.util.Strings;
 
 /**
@@ -50,6 +51,8 @@ import org.apache.logging.log4j.util.ReflectionUtil;
 
     static final EnhancedThrowableProxy[] EMPTY_THROWABLE_PROXY_ARRAY = new EnhancedThrowableProxy[0];
 
+    private static final ExtendedStackTraceElement[] EMPTY_STACK_TRACE = new ExtendedStackTraceElement[0];
+
     private static class CachedClassInfo {
 
         final ExtendedClassInfo element;
@@ -62,6 +65,8 @@ import org.apache.logging.log4j.util.ReflectionUtil;
 
     }
 
+    private static final CachedClassInfo UNKNOWN_CLASS_INFO = new CachedClassInfo(ClassInfoCache.UNKNOWN_INFO, null);
+
     private final EnhancedThrowableProxy causeProxy;
 
     //private final String localizedMessage;
@@ -72,12 +77,24 @@ import org.apache.logging.log4j.util.ReflectionUtil;
 
     private final int commonElementCount;
     private final ExtendedStackTraceElement[] extendedStackTrace;
-
+    // elements carry no class (packaging) information
+    private final boolean noPackaging;
+    // repeating frames (from a deep recursion) or null
+    private final RecursionFold recursion;
+    // frames collapsed (noise, not resolved) or null
+    private final BitSet collapsed;
+
+    // built lazily (not rendered as text) or null
     private EnhancedThrowableProxy[] suppressedProxies;
 
     private final transient Throwable throwable;
-    // cache to avoid calling getStackTrace twice :
-    private transient StackTraceElement[] stackTrace;
+    // snapshot to avoid calling getStackTrace twice :
+    private final transient StackTraceElement[] stackTrace;
+    // state for (lazily) building suppressed proxies :
+    private final transient FrameCollapser collapser;
+    private final transient Set<Throwable> visited;
+    // structural (message independent) hash of the cause chain, 0 - not computed
+    private transient long fingerprint;
 
     /**
      * For JSON and XML IO via Jackson.
@@ -87,11 +104,17 @@ import org.apache.logging.log4j.util.ReflectionUtil;
         this.throwable = null;
         this.name = null;
         this.extendedStackTrace = null;
+        this.noPackaging = false;
+        this.recursion = null;
+        this.collapsed = null;
         this.commonElementCount = 0;
         this.causeProxy = null;
         this.message = null;
         //this.localizedMessage = null;
         this.suppressedProxies = EMPTY_THROWABLE_PROXY_ARRAY;
+        this.stackTrace = null;
+        this.collapser = null;
+        this.visited = null;
     }
 
     /**
@@ -101,71 +124,209 @@ import org.apache.logging.log4j.util.ReflectionUtil;
      *        The Throwable to wrap, must not be null.
      */
     EnhancedThrowableProxy(final Throwable throwable) {
-        this.throwable = throwable;
-        this.name = throwable.getClass().getName();
-        this.message = throwable.getMessage();
-        //this.localizedMessage = throwable.getLocalizedMessage();
+        this(throwable, true);
+    }
 
-        final Stack<Class<?>> stack = ReflectionUtil.getCurrentStackTrace();
+    /**
+     * Constructs the wrapper for the Throwable.
+     *
+     * @param throwable
+     *        The Throwable to wrap, must not be null.
+     * @param packaging
+     *        Whether to include packaging data, without it no classes are loaded
+     *        and the caller's (class) stack is not captured.
+     */
+    EnhancedThrowableProxy(final Throwable throwable, final boolean packaging) {
+        this(throwable, packaging, packaging ? CallerClasses.capture() : null);
+    }
 
-        final StackTraceElement[] stackTrace = getStackTrace();
-        final Map<String, CachedClassInfo> cache = new HashMap<String, CachedClassInfo>(stackTrace.length);
+    /**
+     * Constructs the wrapper for the Throwable.
+     *
+     * @param throwable
+     *        The Throwable to wrap, must not be null.
+     * @param packaging
+     *        Whether to include packaging data.
+     * @param stack
+     *        The caller's (class) stack, if null no frames will be resolved as exact.
+     */
+    EnhancedThrowableProxy(final Throwable throwable, final boolean packaging, final CallerClasses stack) {
+        this(throwable, packaging, stack, null);
+    }
 
-        this.extendedStackTrace = toExtendedStackTrace(stack, cache, stackTrace, stackTrace.length);
-        this.commonElementCount = 0;
+    /**
+     * Constructs the wrapper for the Throwable.
+     *
+     * @param throwable
+     *        The Throwable to wrap, must not be null.
+     * @param packaging
+     *        Whether to include packaging data.
+     * @param stack
+     *        The caller's (class) stack, if null no frames will be resolved as exact.
+     * @param stackTrace
+     *        The Throwable's stack trace (if already retrieved) or null.
+     */
+    EnhancedThrowableProxy(final Throwable throwable, final boolean packaging, final CallerClasses stack,
+        final StackTraceElement[] stackTrace) {
+        this(throwable, packaging, stack, stackTrace == null ? null : Collections.singletonList(stackTrace), FrameCollapser.NONE);
+    }
 
-        final Throwable throwableCause = throwable.getCause();
-        this.causeProxy = throwableCause == null ? null : new EnhancedThrowableProxy(throwable, stack, cache, throwableCause);
+    /**
+     * Constructs the wrapper for the Throwable.
+     *
+     * @param throwable
+     *        The Throwable to wrap, must not be null.
+     * @param packaging
+     *        Whether to include packaging data.
+     * @param stack
+     *        The caller's (class) stack, if null no frames will be resolved as exact.
+     * @param traces
+     *        Stack traces along the cause chain (if already retrieved, the Throwable's first)
+     *        as recorded by {@link #fingerprintOf(Throwable, List)} or null.
+     * @param collapser
+     *        Frames to be collapsed, these are never resolved (no class loading).
+     */
+    EnhancedThrowableProxy(final Throwable throwable, final boolean packaging, final CallerClasses stack,
+        final List<StackTraceElement[]> traces, final FrameCollapser collapser) {
+        this(throwable, traceAt(traces, 0, throwable), null, stack,
+            packaging ? new HashMap<String, CachedClassInfo>() : null, collapser,
+            Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>()), traces, 0);
     }
 
     /**
-     * Constructs the wrapper for a Throwable that is referenced as the cause by another Throwable.
+     * Constructs the wrapper for a Throwable and its causes in one pass, suppressed Throwables
+     * are wrapped on demand. Each Throwable's stack trace is retrieved (at most) once.
      *
-     * @param parent
-     *        The Throwable referencing this Throwable.
+     * @param throwable
+     *        The Throwable to wrap.
+     * @param stackTrace
+     *        The Throwable's stack trace (snapshot).
+     * @param enclosingTrace
+     *        The (snapshot) trace of the enclosing Throwable (referencing this one) or null.
      * @param stack
      *        The Class stack.
      * @param cache
-     *        The cache containing the packaging data.
-     * @param cause
-     *        The Throwable to wrap.
+     *        The cache containing the packaging data, null for no packaging.
+     * @param collapser
+     *        The frame collapsing rules.
+     * @param visited
+     *        Throwables (identities) seen so far, guards against cause/suppressed cycles.
+     * @param traces
+     *        Already retrieved stack traces along the cause chain or null.
+     * @param depth
+     *        The Throwable's depth in the cause chain (0 for the outer-most).
      */
-    private EnhancedThrowableProxy(final Throwable parent, final Stack<Class<?>> stack, final Map<String, CachedClassInfo> cache,
-            final Throwable cause) {
-        this.throwable = cause;
-        this.name = cause.getClass().getName();
-        this.message = this.throwable.getMessage();
-        //this.localizedMessage = this.throwable.getLocalizedMessage();
+    private EnhancedThrowableProxy(final Throwable throwable, final StackTraceElement[] stackTrace,
+        final StackTraceElement[] enclosingTrace, final CallerClasses stack,
+        final Map<String, CachedClassInfo> cache, final FrameCollapser collapser, final Set<Throwable> visited,
+        final List<StackTraceElement[]> traces, final int depth) {
+        visited.add(throwable);
+        this.throwable = throwable;
+        this.name = throwable.getClass().getName();
+        this.message = throwable.getMessage();
+        //this.localizedMessage = throwable.getLocalizedMessage();
+        this.stackTrace = stackTrace;
+
+        this.commonElementCount = commonFrames(stackTrace, enclosingTrace);
+        final int stackLength = stackTrace.length - commonElementCount;
 
-        final StackTraceElement[] rootTrace = parent.getStackTrace();
-        final StackTraceElement[] stackTrace = getStackTrace();
+        this.recursion = RecursionFold.detect(stackTrace, stackLength);
+        this.collapsed = collapsedFrames(collapser, stackTrace, stackLength);
+        this.extendedStackTrace = toExtendedStackTrace(stack, cache, stackTrace, stackLength, recursion, collapsed);
+        this.noPackaging = cache == null;
 
-        int rootIndex = rootTrace.length - 1; int stackIndex = stackTrace.length - 1;
-        while (rootIndex >= 0 && stackIndex >= 0 && rootTrace[rootIndex].equals(stackTrace[stackIndex])) {
-            --rootIndex; --stackIndex;
+        this.collapser = collapser;
+        this.visited = visited;
+
+        final Throwable cause = throwable.getCause();
+        if ( cause == null || cause == throwable ) {
+            this.causeProxy = null;
+        }
+        else if ( visited.contains(cause) ) {
+            this.causeProxy = newCircularReference(cause, cache != null);
         }
-        this.commonElementCount = stackTrace.length - 1 - stackIndex;
-        final int stackLength = stackIndex + 1;
+        else {
+            this.causeProxy = new EnhancedThrowableProxy(cause, traceAt(traces, depth + 1, cause), stackTrace,
+                stack, cache, collapser, visited, traces, depth + 1);
+        }
+    }
 
-        this.extendedStackTrace = toExtendedStackTrace(stack, cache, stackTrace, stackLength);
+    // the already retrieved trace at the depth of the cause chain, otherwise retrieved now
+    private static StackTraceElement[] traceAt(final List<StackTraceElement[]> traces, final int depth, final Throwable thrown) {
+        return traces != null && depth < traces.size() ? traces.get(depth) : thrown.getStackTrace();
+    }
 
-        this.causeProxy = cause.getCause() == null ? null : new EnhancedThrowableProxy(parent, stack, cache, cause.getCause());
+    /**
+     * Constructs a (deserialized) proxy from its parts.
+     *
+     * @see CompactProxyForm
+     */
+    EnhancedThrowableProxy(final String name, final String message, final int commonElementCount,
+        final ExtendedStackTraceElement[] extendedStackTrace, final boolean packaging, final RecursionFold recursion,
+        final BitSet collapsed, final EnhancedThrowableProxy causeProxy, final EnhancedThrowableProxy[] suppressedProxies) {
+        this.throwable = null;
+        this.stackTrace = null;
+        this.collapser = null;
+        this.visited = null;
+        this.name = name;
+        this.message = message;
+        this.commonElementCount = commonElementCount;
+        this.extendedStackTrace = extendedStackTrace;
+        this.noPackaging = ! packaging;
+        this.recursion = recursion;
+        this.collapsed = collapsed;
+        this.causeProxy = causeProxy;
+        this.suppressedProxies = suppressedProxies;
     }
 
-    private StackTraceElement[] getStackTrace() {
-        if ( stackTrace != null ) return stackTrace;
-        return stackTrace = throwable.getStackTrace();
+    /**
+     * Serialized using a compact form, shared (class, file etc.) strings are written once.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new CompactProxyForm(this);
     }
 
-    private ExtendedStackTraceElement[] getExtendedStackTrace() {
+    ExtendedStackTraceElement[] getExtendedStackTrace() {
         return extendedStackTrace;
     }
 
-    private EnhancedThrowableProxy[] getSuppressedProxies() {
-        if ( suppressedProxies != null ) return suppressedProxies;
-        return suppressedProxies = toSuppressedProxies(throwable);
+    EnhancedThrowableProxy[] getSuppressedProxies() {
+        EnhancedThrowableProxy[] suppressed = suppressedProxies;
+        if ( suppressed == null ) { // e.g. for serialization, the text renderer does not need these
+            // NOTE: suppressed ones are not matched against the caller's stack
+            final Map<String, CachedClassInfo> cache = noPackaging ? null : new HashMap<String, CachedClassInfo>();
+            suppressedProxies = suppressed = toSuppressedProxies(throwable, stackTrace, cache, collapser, visited);
+        }
+        return suppressed;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    int getCommonElementCount() {
+        return commonElementCount;
+    }
+
+    boolean isPackaging() {
+        return ! noPackaging;
+    }
+
+    RecursionFold getRecursionFold() {
+        return recursion;
     }
 
+    BitSet getCollapsedFrames() {
+        return collapsed;
+    }
+
+    /**
+     * Structural equality, messages and suppressed exceptions are not compared.
+     */
     @Override
     public boolean equals(final Object obj) {
         if (this == obj) {
@@ -178,11 +339,7 @@ import org.apache.logging.log4j.util.ReflectionUtil;
             return false;
         }
         final EnhancedThrowableProxy other = (EnhancedThrowableProxy) obj;
-        if (this.causeProxy == null) {
-            if (other.causeProxy != null) {
-                return false;
-            }
-        } else if (!this.causeProxy.equals(other.causeProxy)) {
+        if (this.getFingerprint() != other.getFingerprint()) {
             return false;
         }
         if (this.commonElementCount != other.commonElementCount) {
@@ -195,88 +352,151 @@ import org.apache.logging.log4j.util.ReflectionUtil;
         } else if (!this.name.equals(other.name)) {
             return false;
         }
-        if (!Arrays.equals(this.getExtendedStackTrace(), other.getExtendedStackTrace())) {
+        if (!sameFrames(this.getExtendedStackTrace(), other.getExtendedStackTrace())) {
             return false;
         }
-        if (!Arrays.equals(this.getSuppressedProxies(), other.getSuppressedProxies())) {
+        if (this.causeProxy == null) {
+            if (other.causeProxy != null) {
+                return false;
+            }
+        } else if (!this.causeProxy.equals(other.causeProxy)) {
             return false;
         }
         return true;
     }
 
+    // frames compared as fingerprinted (ignoring Java 9+ loader and module names) along with class info
+    private static boolean sameFrames(final ExtendedStackTraceElement[] trace, final ExtendedStackTraceElement[] otherTrace) {
+        if ( trace.length != otherTrace.length ) return false;
+        for ( int i = 0; i < trace.length; i++ ) {
+            if ( trace[i] == otherTrace[i] ) continue;
+            final StackTraceElement frame = trace[i].getStackTraceElement();
+            final StackTraceElement otherFrame = otherTrace[i].getStackTraceElement();
+            if ( frame.getLineNumber() != otherFrame.getLineNumber() ||
+                 ! frame.getClassName().equals(otherFrame.getClassName()) ||
+                 ! frame.getMethodName().equals(otherFrame.getMethodName()) ||
+                 ! equals(frame.getFileName(), otherFrame.getFileName()) ||
+                 ! trace[i].getExtraClassInfo().equals(otherTrace[i].getExtraClassInfo()) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(final String str, final String otherStr) {
+        return str == null ? otherStr == null : str.equals(otherStr);
+    }
+
     @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-    private static void formatCause(final StringBuilder sb, final EnhancedThrowableProxy cause, final Collection<String> ignorePackages) {
-        sb.append("Caused by: ").append(cause).append('\n');
-        formatElements(sb, cause.commonElementCount, cause.getThrowable().getStackTrace(), cause.getExtendedStackTrace(), ignorePackages);
-        if ( cause.causeProxy != null ) formatCause(sb, cause.causeProxy, ignorePackages);
+    private static void formatCause(final TraceWriter out, final EnhancedThrowableProxy cause, final PackageMatcher ignorePackages) {
+        formatThrowable(out.line().append("Caused by: "), out, cause);
+        formatElements(out, cause, ignorePackages);
+        if ( cause.causeProxy != null && ! out.isFull() ) formatCause(out, cause.causeProxy, ignorePackages);
+    }
+
+    private static void formatThrowable(final StringBuilder sb, final TraceWriter out, final EnhancedThrowableProxy proxy) {
+        sb.append(proxy.name);
+        final String msg = proxy.message;
+        if ( msg != null ) {
+            sb.append(": "); out.appendText(msg);
+        }
+        out.endLine();
     }
 
-    private static void formatElements(final StringBuilder sb,
-        final int commonCount, final StackTraceElement[] causedTrace,
-        final ExtendedStackTraceElement[] extStackTrace, final Collection<String> ignorePackages) {
+    private static void formatElements(final TraceWriter out,
+        final EnhancedThrowableProxy proxy, final PackageMatcher ignorePackages) {
+        formatElements(out, proxy, ignorePackages, Integer.MAX_VALUE);
+    }
+
+    private static void formatElements(final TraceWriter out,
+        final EnhancedThrowableProxy proxy, final PackageMatcher ignorePackages, final int maxFrames) {
+        final int commonCount = proxy.commonElementCount;
+        final ExtendedStackTraceElement[] extStackTrace = proxy.getExtendedStackTrace();
+        final boolean packaging = ! proxy.noPackaging;
+
+        final RecursionFold fold = proxy.recursion;
+        final BitSet collapsed = proxy.collapsed;
+        final boolean filter = ! ignorePackages.isEmpty();
 
-        if ( ignorePackages == null || ignorePackages.isEmpty() ) {
-            for ( int i = 0; i < extStackTrace.length; ++i ) {
-                sb.append("\tat ").append( extStackTrace[i] ).append('\n');
+        int elided = 0; int frames = 0; int count = 0;
+        for ( int i = 0; i < extStackTrace.length; ++i ) {
+            if ( out.isFull() ) {
+                elided = extStackTrace.length - i; break;
             }
-        }
-        else {
-            int count = 0;
-            for (int i = 0; i < extStackTrace.length; ++i) {
-                if ( ! ignoreElement(causedTrace[i], ignorePackages) ) {
-                    if (count > 0) {
-                        if (count == 1) sb.append("\t....\n");
-                        else sb.append("\t... suppressed ").append(count).append(" lines\n");
-
-                        count = 0;
+            if ( fold != null && i == fold.foldStart() ) { // first cycle printed, skip the repeated ones
+                if ( count > 0 ) {
+                    count = formatSuppressed(out, count, "\t....");
+                    if ( out.isFull() ) {
+                        elided = extStackTrace.length - i; break;
                     }
-                    sb.append("\tat ").append( extStackTrace[i] ).append('\n');
                 }
-                else { ++count; }
+                out.line().append("\t[frames ").append(fold.start + 1).append('-').append(fold.start + fold.period).
+                    append(" repeated ").append(fold.count - 1).append(" times]");
+                out.endLine();
+                i = fold.foldEnd() - 1; continue;
             }
-            if (count > 0) {
-                if (count == 1) sb.append("\t...\n");
-                else sb.append("\t... suppressed ").append(count).append(" lines\n");
+            if ( ( collapsed != null && collapsed.get(i) ) || ( filter && ignorePackages.matches(extStackTrace[i].getClassName()) ) ) {
+                ++count; continue;
+            }
+            if ( count > 0 ) {
+                count = formatSuppressed(out, count, "\t....");
+                if ( out.isFull() ) {
+                    elided = extStackTrace.length - i; break;
+                }
             }
+            if ( frames++ == maxFrames ) {
+                elided = extStackTrace.length - i; break;
+            }
+            formatElement(out, extStackTrace[i], packaging);
+        }
+        if ( count > 0 && out.hasLines() ) formatSuppressed(out, count, "\t...");
+
+        if ( elided > 0 ) {
+            if ( ! out.hasLines() ) return;
+            out.line().append("\t... ").append(elided).append(" frames elided"); out.endLine();
         }
 
-        if ( commonCount != 0 ) {
-            sb.append("\t... ").append(commonCount).append(" more").append('\n');
+        if ( commonCount != 0 && ! out.isFull() ) {
+            out.line().append("\t... ").append(commonCount).append(" more"); out.endLine();
         }
     }
 
-    /**
-     * Formats the specified Throwable.
-     *
-     * @param sb
-     *        StringBuilder to contain the formatted Throwable.
-     * @param cause
-     *        The Throwable to format.
-     */
-    @SuppressWarnings("unchecked")
-    private static void formatWrapper(final StringBuilder sb, final EnhancedThrowableProxy cause) {
-        formatWrapper(sb, cause, Collections.EMPTY_LIST);
+    private static int formatSuppressed(final TraceWriter out, final int count, final String single) {
+        if ( count == 1 ) out.line().append(single);
+        else out.line().append("\t... suppressed ").append(count).append(" lines");
+        out.endLine();
+        return 0;
+    }
+
+    private static void formatElement(final TraceWriter out, final ExtendedStackTraceElement element, final boolean packaging) {
+        out.line().append("\tat ").append(FrameLineCache.INSTANCE.line(element, packaging));
+        out.endLine();
     }
 
     /**
      * Formats the specified Throwable.
      *
-     * @param sb
-     *        StringBuilder to contain the formatted Throwable.
+     * @param out
+     *        TraceWriter to contain the formatted Throwable.
      * @param cause
      *        The Throwable to format.
      * @param ignorePackages
-     *        The List of packages to be suppressed from the trace.
+     *        The packages to be suppressed from the trace.
      */
     @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-    private static void formatWrapper(final StringBuilder sb, final EnhancedThrowableProxy cause, final Collection<String> ignorePackages) {
+    private static void formatWrapper(final TraceWriter out, final EnhancedThrowableProxy cause, final PackageMatcher ignorePackages) {
         final Throwable caused = cause.getCauseProxy() != null ? cause.getCauseProxy().getThrowable() : null;
+        final StringBuilder sb;
         if (caused != null) {
-            formatWrapper(sb, cause.causeProxy);
-            sb.append("Wrapped by: ");
+            formatWrapper(out, cause.causeProxy, ignorePackages);
+            if ( out.isFull() ) return;
+            sb = out.line().append("Wrapped by: ");
         }
-        sb.append(cause).append('\n');
-        formatElements(sb, cause.commonElementCount, cause.getStackTrace(), cause.getExtendedStackTrace(), ignorePackages);
+        else {
+            sb = out.line();
+        }
+        formatThrowable(sb, out, cause);
+        formatElements(out, cause, ignorePackages);
     }
 
     public final EnhancedThrowableProxy getCauseProxy() { return this.causeProxy; }
@@ -343,16 +563,122 @@ import org.apache.logging.log4j.util.ReflectionUtil;
      * @return The formatted stack trace including packaging information.
      */
     final CharSequence getExtendedStackTraceAsString(final Collection<String> ignorePackages) {
-        final StringBuilder sb = new StringBuilder(512).append(this.name);
-        final String msg = this.message;
-        if ( msg != null ) sb.append(": ").append(msg);
-        sb.append('\n');
+        final StringBuilder sb = new StringBuilder(512);
+        formatExtendedStackTrace(new TraceWriter(sb), PackageMatcher.compile(ignorePackages));
+        return sb;
+    }
+
+    /**
+     * Format the stack trace including packaging information, within a budget.
+     *
+     * @param ignorePackages
+     *        List of packages to be ignored in the trace.
+     * @param budget
+     *        The output limits.
+     * @return The formatted stack trace including packaging information.
+     */
+    final CharSequence getExtendedStackTraceAsString(final Collection<String> ignorePackages, final TraceBudget budget) {
+        final int capacity = budget.maxChars < 64 * 1024 ? budget.maxChars + 128 : 512;
+        final StringBuilder sb = new StringBuilder(capacity);
+        formatExtendedStackTrace(new TraceWriter(sb), PackageMatcher.compile(ignorePackages), budget);
+        return sb;
+    }
+
+    /**
+     * Format the stack trace (into the writer) within the budget, keeping the
+     * top frames of this (outer-most) throwable as well as of the root cause.
+     * Causes in between are reduced to their header line when frames are limited
+     * and are elided all together once running out of characters.
+     *
+     * @param out
+     *        The output.
+     * @param ignorePackages
+     *        The (compiled) packages to be ignored in the trace.
+     * @param budget
+     *        The output limits.
+     */
+    final void formatExtendedStackTrace(final TraceWriter out, final PackageMatcher ignorePackages, final TraceBudget budget) {
+        if ( ! budget.isLimited() ) {
+            if ( budget.rootCauseFirst ) formatWrapper(out, this, ignorePackages);
+            else formatExtendedStackTrace(out, ignorePackages);
+            return;
+        }
 
-        formatElements(sb, 0, getStackTrace(), this.getExtendedStackTrace(), ignorePackages);
+        int length = 0;
+        for ( EnhancedThrowableProxy proxy = this; proxy != null; proxy = proxy.causeProxy ) length++;
+        final EnhancedThrowableProxy[] chain = new EnhancedThrowableProxy[length];
+        length = 0;
+        for ( EnhancedThrowableProxy proxy = this; proxy != null; proxy = proxy.causeProxy ) chain[length++] = proxy;
+
+        final int start = out.getBuffer().length();
+        final int maxChars = budget.maxChars;
+        if ( length == 1 ) {
+            formatSegment(out, null, this, ignorePackages, budget.maxFrames, lengthLimit(start, maxChars));
+            return;
+        }
 
-        if ( this.causeProxy != null ) formatCause(sb, this.causeProxy, ignorePackages);
+        final boolean framesLimited = budget.maxFrames != Integer.MAX_VALUE;
+        final int outerFrames = framesLimited ? ( budget.maxFrames + 1 ) / 2 : Integer.MAX_VALUE;
+        final int rootFrames = framesLimited ? budget.maxFrames - outerFrames : Integer.MAX_VALUE;
+        final int middleFrames = framesLimited ? 0 : Integer.MAX_VALUE;
+        final EnhancedThrowableProxy root = chain[length - 1];
 
-        return sb;
+        if ( budget.rootCauseFirst ) {
+            formatSegment(out, null, root, ignorePackages, rootFrames, lengthLimit(start, maxChars / 2));
+            formatSegments(out, "Wrapped by: ", chain, length - 2, 0, ignorePackages, middleFrames, lengthLimit(start, maxChars / 4 * 3));
+            formatSegment(out, "Wrapped by: ", this, ignorePackages, outerFrames, lengthLimit(start, maxChars));
+        }
+        else {
+            formatSegment(out, null, this, ignorePackages, outerFrames, lengthLimit(start, maxChars / 2));
+            formatSegments(out, "Caused by: ", chain, 1, length - 1, ignorePackages, middleFrames, lengthLimit(start, maxChars / 4 * 3));
+            formatSegment(out, "Caused by: ", root, ignorePackages, rootFrames, lengthLimit(start, maxChars));
+        }
+    }
+
+    private static int lengthLimit(final int start, final int maxChars) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) start + maxChars);
+    }
+
+    private static void formatSegment(final TraceWriter out, final String prefix, final EnhancedThrowableProxy proxy,
+        final PackageMatcher ignorePackages, final int maxFrames, final int lengthLimit) {
+        if ( ! out.hasLines() ) return;
+        out.setLengthLimit(lengthLimit);
+        final StringBuilder sb = out.line();
+        if ( prefix != null ) sb.append(prefix);
+        formatThrowable(sb, out, proxy);
+        formatElements(out, proxy, ignorePackages, maxFrames);
+    }
+
+    // formats chain[from] (inclusive) towards chain[to] (exclusive)
+    private static void formatSegments(final TraceWriter out, final String prefix,
+        final EnhancedThrowableProxy[] chain, final int from, final int to,
+        final PackageMatcher ignorePackages, final int maxFrames, final int lengthLimit) {
+        final int step = from <= to ? 1 : -1;
+        for ( int i = from; i != to; i += step ) {
+            if ( ! out.hasLines() ) return;
+            if ( out.getBuffer().length() >= lengthLimit ) {
+                out.line().append("\t... ").append(( to - i ) * step).append(" causes elided"); out.endLine();
+                return;
+            }
+            formatSegment(out, prefix, chain[i], ignorePackages, maxFrames, lengthLimit);
+        }
+    }
+
+    /**
+     * Format the stack trace including packaging information (into the writer).
+     *
+     * @param out
+     *        The output, rendering stops once its line budget is used up.
+     * @param ignorePackages
+     *        The (compiled) packages to be ignored in the trace.
+     */
+    final void formatExtendedStackTrace(final TraceWriter out, final PackageMatcher ignorePackages) {
+        formatThrowable(out.line(), out, this);
+        if ( out.isFull() ) return;
+
+        formatElements(out, this, ignorePackages);
+
+        if ( this.causeProxy != null && ! out.isFull() ) formatCause(out, this.causeProxy, ignorePackages);
     }
 
     /*
@@ -394,25 +720,89 @@ import org.apache.logging.log4j.util.ReflectionUtil;
         return this.throwable;
     }
 
-    @Override
-    public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + (this.causeProxy == null ? 0 : this.causeProxy.hashCode());
-        result = prime * result + this.commonElementCount;
-        // result = prime * result + (this.extendedStackTrace == null ? 0 : Arrays.hashCode(this.extendedStackTrace));
-        result = prime * result + (this.message == null ? 0 : this.message.hashCode());
-        // result = prime * result + ( Arrays.hashCode(getSuppressedProxies()) );
-        result = prime * result + (this.name == null ? 0 : this.name.hashCode());
-        return result;
+    /**
+     * A stable structural fingerprint, computed from the names and frames of
+     * this throwable and its causes (messages are not part of it).
+     *
+     * @return the fingerprint
+     */
+    final long getFingerprint() {
+        long fingerprint = this.fingerprint;
+        if ( fingerprint == 0 ) {
+            fingerprint = FnvHash.OFFSET;
+            for ( EnhancedThrowableProxy proxy = this; proxy != null; proxy = proxy.causeProxy ) {
+                fingerprint = FnvHash.hash(fingerprint, proxy.name);
+                fingerprint = FnvHash.hash(fingerprint, proxy.commonElementCount);
+                for ( final ExtendedStackTraceElement element : proxy.extendedStackTrace ) {
+                    final StackTraceElement frame = element.getStackTraceElement();
+                    fingerprint = FnvHash.hash(fingerprint, frame.getClassName());
+                    fingerprint = FnvHash.hash(fingerprint, frame.getMethodName());
+                    fingerprint = FnvHash.hash(fingerprint, frame.getFileName());
+                    fingerprint = FnvHash.hash(fingerprint, frame.getLineNumber());
+                }
+            }
+            if ( fingerprint == 0 ) fingerprint = 1;
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Computes the {@link #getFingerprint()} of a (would be) proxy without building one,
+     * each stack trace along the cause chain is retrieved once.
+     *
+     * @param throwable the Throwable
+     * @return the (structural) fingerprint
+     */
+    static long fingerprintOf(final Throwable throwable) {
+        return fingerprintOf(throwable, null);
     }
 
-    private static boolean ignoreElement(final StackTraceElement element, final Collection<String> ignorePackages) {
-        final String className = element.getClassName();
-        for ( final String pkg : ignorePackages ) {
-            if ( className.startsWith(pkg) ) return true;
+    /**
+     * @param throwable the Throwable
+     * @param traces already retrieved stack traces along the cause chain (the Throwable's first),
+     *        traces retrieved while fingerprinting are added, might be null
+     * @return the (structural) fingerprint
+     * @see #fingerprintOf(Throwable)
+     */
+    static long fingerprintOf(final Throwable throwable, final List<StackTraceElement[]> traces) {
+        long fingerprint = FnvHash.OFFSET;
+        final Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        StackTraceElement[] enclosingTrace = null;
+        Throwable thrown = throwable;
+        int depth = 0;
+        while ( thrown != null ) {
+            visited.add(thrown);
+            final StackTraceElement[] trace = traceAt(traces, depth++, thrown);
+            if ( traces != null && depth > traces.size() ) traces.add(trace);
+            final int commonCount = commonFrames(trace, enclosingTrace);
+            fingerprint = FnvHash.hash(fingerprint, thrown.getClass().getName());
+            fingerprint = FnvHash.hash(fingerprint, commonCount);
+            for ( int i = 0; i < trace.length - commonCount; i++ ) {
+                final StackTraceElement frame = trace[i];
+                fingerprint = FnvHash.hash(fingerprint, frame.getClassName());
+                fingerprint = FnvHash.hash(fingerprint, frame.getMethodName());
+                fingerprint = FnvHash.hash(fingerprint, frame.getFileName());
+                fingerprint = FnvHash.hash(fingerprint, frame.getLineNumber());
+            }
+            enclosingTrace = trace;
+
+            final Throwable cause = thrown.getCause();
+            if ( cause == thrown ) break;
+            if ( cause != null && visited.contains(cause) ) { // as newCircularReference
+                fingerprint = FnvHash.hash(fingerprint, "[CIRCULAR REFERENCE: " + cause + ']');
+                fingerprint = FnvHash.hash(fingerprint, 0);
+                break;
+            }
+            thrown = cause;
         }
-        return false;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+        final long fingerprint = getFingerprint();
+        return (int) ( fingerprint ^ ( fingerprint >>> 32 ) );
     }
 
     /**
@@ -427,6 +817,22 @@ import org.apache.logging.log4j.util.ReflectionUtil;
     static Class<?> loadClass(final ClassLoader lastLoader, final String className) {
         if ( ! isValidClassName(className) ) return null; // handles "weird" (Ruby) names
 
+        final NegativeClassCache negativeCache = negativeClassCache;
+        if ( negativeCache.isUnresolvable(lastLoader, className) ) return null;
+
+        ThrowableRenderingMetrics.INSTANCE.loadClassAttempts.increment();
+        final Class<?> clazz = loadClassImpl(lastLoader, className);
+        if ( clazz == null ) {
+            ThrowableRenderingMetrics.INSTANCE.loadClassFailures.increment();
+            negativeCache.markUnresolvable(lastLoader, className);
+        }
+        else {
+            loaderRoutes.learn(className, clazz.getClassLoader());
+        }
+        return clazz;
+    }
+
+    private static Class<?> loadClassImpl(final ClassLoader lastLoader, final String className) {
         // XXX: this is overly complicated
         Class<?> clazz;
         if (lastLoader != null) {
@@ -439,6 +845,18 @@ import org.apache.logging.log4j.util.ReflectionUtil;
                 LOGGER.info("loadClass( {} ) initialize using last loader {} failed {}", className, lastLoader, e);
             }
         }
+        // a learned (unambiguous) route only after the last loader missed
+        final ClassLoader routedLoader = loaderRoutes.loaderFor(className);
+        if (routedLoader != null && routedLoader != lastLoader) {
+            try {
+                clazz = Loader.initializeClass(className, routedLoader);
+                if ( clazz != null ) return clazz;
+            }
+            catch (final ClassNotFoundException ignored) { /* noop */ }
+            catch (final Exception e) {
+                LOGGER.info("loadClass( {} ) initialize using routed loader {} failed {}", className, routedLoader, e);
+            }
+        }
 
         try {
             clazz = loaderDelegate.loadClass(className);
@@ -471,6 +889,12 @@ import org.apache.logging.log4j.util.ReflectionUtil;
     // NOTE: only due testability
     static LoaderDelegate loaderDelegate = new LoaderDelegate();
 
+    // remembers (generated/proxy) class names that failed to load for a minute
+    static NegativeClassCache negativeClassCache = new NegativeClassCache(1024, 60 * 1000);
+
+    // package -> loader that resolved it (tried before the delegate)
+    static LoaderRoutes loaderRoutes = new LoaderRoutes(1024);
+
     static class LoaderDelegate {
 
         Class<?> loadClass(final String name) throws ClassNotFoundException, RuntimeException {
@@ -482,91 +906,92 @@ import org.apache.logging.log4j.util.ReflectionUtil;
     /**
      * Construct the ClassInfoCache from the Class's information.
      *
-     * @param stackTraceElement
-     *        The stack trace element
      * @param callerClass
      *        The Class.
      * @param exact
      *        True if the class was obtained via Reflection.getCallerClass.
      *
      * @return The ClassInfoCache.
+     * @see ClassInfoCache
      */
     private static CachedClassInfo toCacheEntry(final Class<?> callerClass, final boolean exact) {
-        String location = "?"; String version = "?"; ClassLoader lastLoader = null;
-        if (callerClass != null) {
-            try {
-                final CodeSource source = callerClass.getProtectionDomain().getCodeSource();
-                if (source != null) {
-                    final URL locationURL = source.getLocation();
-                    if (locationURL != null) {
-                        final String str = locationURL.toString().replace('\\', '/');
-                        int index = str.lastIndexOf('/');
-                        if (index >= 0 && index == str.length() - 1) {
-                            index = str.lastIndexOf('/', index - 1);
-                            location = str.substring(index + 1);
-                        } else {
-                            location = str.substring(index + 1);
-                        }
-                    }
-                }
-            }
-            catch (final Exception e) {
-                LOGGER.debug("code source location for class {} failed {}", callerClass, e);
-            }
-
-            final Package pkg = callerClass.getPackage();
-            if (pkg != null) {
-                final String ver = pkg.getImplementationVersion();
-                if (ver != null) {
-                    version = ver;
-                }
-            }
-            lastLoader = callerClass.getClassLoader();
-        }
-        return new CachedClassInfo(new ExtendedClassInfo(exact, location, version), lastLoader);
+        if ( callerClass == null ) return UNKNOWN_CLASS_INFO;
+        return new CachedClassInfo(ClassInfoCache.getClassInfo(callerClass, exact), callerClass.getClassLoader());
     }
 
     /**
      * Resolve all the stack entries in this stack trace that are not common with the parent.
      *
      * @param stack
-     *        The callers Class stack.
+     *        The callers Class stack (might be null).
      * @param cache
-     *        The cache of ClassInfoCache objects.
+     *        The cache of ClassInfoCache objects, null to skip resolving packaging data.
      * @param rootTrace
      *        The first stack trace resolve or null.
      * @param stackTrace
      *        The stack trace being resolved.
+     * @param fold
+     *        The repeating frames (resolved only once) or null.
+     * @param collapsed
+     *        The collapsed frames (not resolved) or null.
      * @return The StackTracePackageElement array.
      */
-    private static ExtendedStackTraceElement[] toExtendedStackTrace(final Stack<Class<?>> stack,
+    private static ExtendedStackTraceElement[] toExtendedStackTrace(final CallerClasses stack,
             final Map<String, CachedClassInfo> cache,
-            final StackTraceElement[] stackTrace, final int stackLength) {
+            final StackTraceElement[] stackTrace, final int stackLength, final RecursionFold fold, final BitSet collapsed) {
 
         final ExtendedStackTraceElement[] extStackTrace = new ExtendedStackTraceElement[stackLength];
 
-        Class<?> clazz = stack.isEmpty() ? null : stack.peek();
+        if ( cache == null ) { // no packaging data
+            for ( int i = stackLength - 1; i >= 0; --i ) {
+                if ( fold != null && fold.isRepeated(i) ) {
+                    extStackTrace[i] = extStackTrace[i + fold.period]; continue;
+                }
+                extStackTrace[i] = new ExtendedStackTraceElement(stackTrace[i], ClassInfoCache.UNKNOWN_INFO);
+            }
+            return extStackTrace;
+        }
+
+        Class<?> clazz = stack == null ? null : stack.peek();
         ClassLoader lastLoader = null;
+        // (shared) class info entries of the last exact frame's loader
+        ConcurrentMap<String, ClassInfoCache.Entry> entries = null; ClassLoader entriesLoader = null;
+        int resolved = 0; int cacheHits = 0;
 
         for ( int i = stackLength - 1; i >= 0; --i ) {
+            if ( fold != null && fold.isRepeated(i) ) { // same frame as a cycle later (already resolved)
+                extStackTrace[i] = extStackTrace[i + fold.period]; continue;
+            }
             final StackTraceElement stackTraceElement = stackTrace[i];
             final String className = stackTraceElement.getClassName();
+            if ( collapsed != null && collapsed.get(i) ) {
+                if ( clazz != null && className.equals(clazz.getName()) ) {
+                    stack.pop(); clazz = stack.peek();
+                }
+                extStackTrace[i] = new ExtendedStackTraceElement(stackTraceElement, ClassInfoCache.UNKNOWN_INFO);
+                continue;
+            }
+            resolved++;
             // The stack returned from getCurrentStack may be missing entries for java.lang.reflect.Method.invoke()
             // and its implementation. The Throwable might also contain stack entries that are no longer
             // present as those methods have returned.
             ExtendedClassInfo extClassInfo;
             if (clazz != null && className.equals(clazz.getName())) {
-                final CachedClassInfo entry = toCacheEntry(clazz, true); // exact = true
-                extClassInfo = entry.element;
-                lastLoader = entry.loader;
+                lastLoader = clazz.getClassLoader();
+                if ( entries == null || lastLoader != entriesLoader ) {
+                    entries = ClassInfoCache.entriesFor(entriesLoader = lastLoader);
+                }
+                extClassInfo = ClassInfoCache.getEntry(entries, clazz).get(true); // exact = true
                 stack.pop();
-                clazz = stack.isEmpty() ? null : stack.peek();
+                clazz = stack.peek();
+                cacheHits++; // no class loading needed
             }
             else {
                 CachedClassInfo entry = cache.get(className);
                 if ( entry != null ) {
                     extClassInfo = entry.element;
                     if ( entry.loader != null ) lastLoader = entry.loader;
+                    cacheHits++;
                 }
                 else {
                     Class<?> klass = loadClass(lastLoader, className);
@@ -578,31 +1003,64 @@ import org.apache.logging.log4j.util.ReflectionUtil;
             }
             extStackTrace[i] = new ExtendedStackTraceElement(stackTraceElement, extClassInfo);
         }
+        ThrowableRenderingMetrics.INSTANCE.resolved(resolved, cacheHits, resolved - cacheHits);
         return extStackTrace;
     }
 
+    // number of frames (at the bottom) in common with the enclosing trace
+    private static int commonFrames(final StackTraceElement[] stackTrace, final StackTraceElement[] enclosingTrace) {
+        if ( enclosingTrace == null ) return 0;
+        int stackIndex = stackTrace.length - 1;
+        int enclosingIndex = enclosingTrace.length - 1;
+        while (enclosingIndex >= 0 && stackIndex >= 0 && enclosingTrace[enclosingIndex].equals(stackTrace[stackIndex])) {
+            --enclosingIndex; --stackIndex;
+        }
+        return stackTrace.length - 1 - stackIndex;
+    }
+
+    private static BitSet collapsedFrames(final FrameCollapser collapser, final StackTraceElement[] stackTrace, final int stackLength) {
+        if ( collapser.isEmpty() ) return null;
+        BitSet collapsed = null;
+        for ( int i = 0; i < stackLength; i++ ) {
+            if ( collapser.isCollapsed(stackTrace[i]) ) {
+                if ( collapsed == null ) collapsed = new BitSet(stackLength);
+                collapsed.set(i);
+            }
+        }
+        return collapsed;
+    }
+
     @Override
     public String toString() {
         final String msg = this.message;
         return msg != null ? ( this.name + ": " + msg ) : this.name;
     }
 
-    private static EnhancedThrowableProxy[] toSuppressedProxies(final Throwable thrown) {
+    private static EnhancedThrowableProxy[] toSuppressedProxies(final Throwable thrown, final StackTraceElement[] enclosingTrace,
+        final Map<String, CachedClassInfo> cache, final FrameCollapser collapser, final Set<Throwable> visited) {
         try {
             @SuppressWarnings("deprecation")
             final Throwable[] suppressed = Throwables.getSuppressed(thrown);
-            if ( suppressed == null ) return EMPTY_THROWABLE_PROXY_ARRAY;
+            if ( suppressed == null || suppressed.length == 0 ) return EMPTY_THROWABLE_PROXY_ARRAY;
 
             final EnhancedThrowableProxy[] proxies = new EnhancedThrowableProxy[suppressed.length];
             for (int i = 0; i < suppressed.length; i++) {
-                proxies[i] = new EnhancedThrowableProxy( suppressed[i] );
+                final Throwable s = suppressed[i];
+                if ( visited.contains(s) ) proxies[i] = newCircularReference(s, cache != null);
+                else proxies[i] = new EnhancedThrowableProxy(s, s.getStackTrace(), enclosingTrace, null, cache, collapser, visited, null, 0);
             }
             return proxies;
         }
         catch (final RuntimeException e) {
             LOGGER.error("toSuppressedProxies( {} ) failed {}", thrown, e);
         }
-        return null;
+        return EMPTY_THROWABLE_PROXY_ARRAY;
+    }
+
+    // rendered (as JDK does) e.g. "Caused by: [CIRCULAR REFERENCE: java.lang.Exception: failed]"
+    private static EnhancedThrowableProxy newCircularReference(final Throwable thrown, final boolean packaging) {
+        return new EnhancedThrowableProxy("[CIRCULAR REFERENCE: " + thrown + ']', null, 0,
+            EMPTY_STACK_TRACE, packaging, null, null, null, EMPTY_THROWABLE_PROXY_ARRAY);
     }
 
 }
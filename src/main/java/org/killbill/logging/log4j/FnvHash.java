@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+/**
+ * (64-bit) FNV-1 style hashing of trace parts, used for fingerprints and keys.
+ *
+ * @author kares
+ */
+final class FnvHash {
+
+    static final long OFFSET = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private FnvHash() { /* static only */ }
+
+    static long hash(final long hash, final String str) {
+        return hash(hash, str == null ? 0 : str.hashCode());
+    }
+
+    static long hash(final long hash, final int value) {
+        return ( hash ^ value ) * PRIME;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rules for collapsing "noise" frames (reflection, generated proxies, framework
+ * dispatch, interpreters) out of a trace. Collapsed frames are not resolved
+ * (no class loading) and are printed as suppressed lines.
+ *
+ * Rules are compiled from strings :
+ * <ul>
+ *   <li><code>com.acme.Foo#bar</code> - a method of a (fully qualified) class</li>
+ *   <li><code>*$$EnhancerByGuice$$</code> - class names containing the text</li>
+ *   <li><code>sun.reflect.</code> - class names starting with the prefix</li>
+ * </ul>
+ * Decisions are remembered per stack trace element (in a bounded cache).
+ *
+ * @author kares
+ */
+final class FrameCollapser {
+
+    static final FrameCollapser NONE = new FrameCollapser(PackageMatcher.NONE, new String[0], new HashSet<String>());
+
+    static final List<String> DEFAULT_RULES = Arrays.asList(
+        // reflective invocation
+        "java.lang.reflect.Method#invoke",
+        "sun.reflect.",
+        "jdk.internal.reflect.",
+        // generated proxies (and their fast-class dispatch)
+        "*$$EnhancerByGuice$$",
+        "*$$FastClassByGuice$$",
+        "*$$EnhancerByCGLIB$$",
+        "*$$FastClassByCGLIB$$",
+        "*$$Lambda$",
+        "net.sf.cglib.proxy.",
+        "com.google.inject.internal.cglib.",
+        // Jersey resource method dispatch
+        "org.glassfish.jersey.server.model.internal.",
+        "org.glassfish.jersey.server.model.ResourceMethodInvoker",
+        "com.sun.jersey.server.impl.model.method.dispatch.",
+        // JRuby interpreter and call-sites
+        "org.jruby.internal.runtime.methods.",
+        "org.jruby.ir.interpreter.",
+        "org.jruby.runtime.callsite."
+    );
+
+    private static final int MAX_CACHED_DECISIONS = 4096;
+
+    private final PackageMatcher prefixes;
+    private final String[] contains;
+    private final Set<String> methods; // "class#method"
+
+    private final ConcurrentMap<StackTraceElement, Boolean> decisions;
+
+    private FrameCollapser(final PackageMatcher prefixes, final String[] contains, final Set<String> methods) {
+        this.prefixes = prefixes;
+        this.contains = contains;
+        this.methods = methods;
+        this.decisions = isEmpty() ? null : new ConcurrentHashMap<StackTraceElement, Boolean>(256);
+    }
+
+    /**
+     * @param rules the rules to compile
+     * @return the collapser
+     */
+    static FrameCollapser compile(final Collection<String> rules) {
+        if ( rules == null || rules.isEmpty() ) return NONE;
+
+        final List<String> prefixes = new ArrayList<String>();
+        final List<String> contains = new ArrayList<String>();
+        final Set<String> methods = new HashSet<String>();
+        for ( final String rule : rules ) {
+            if ( rule.isEmpty() ) continue;
+            if ( rule.charAt(0) == '*' ) contains.add(rule.substring(1));
+            else if ( rule.indexOf('#') > 0 ) methods.add(rule);
+            else prefixes.add(rule);
+        }
+        return new FrameCollapser(PackageMatcher.compile(prefixes), contains.toArray(new String[contains.size()]), methods);
+    }
+
+    boolean isEmpty() {
+        return prefixes.isEmpty() && contains.length == 0 && methods.isEmpty();
+    }
+
+    /**
+     * @param element the frame
+     * @return true if the frame is to be collapsed
+     */
+    boolean isCollapsed(final StackTraceElement element) {
+        if ( decisions == null ) return false;
+
+        final Boolean decision = decisions.get(element);
+        if ( decision != null ) return decision;
+
+        final boolean match = matchRules(element);
+        if ( decisions.size() >= MAX_CACHED_DECISIONS ) decisions.clear();
+        decisions.put(element, match);
+        return match;
+    }
+
+    private boolean matchRules(final StackTraceElement element) {
+        final String className = element.getClassName();
+        if ( prefixes.matches(className) ) return true;
+        for ( final String text : contains ) {
+            if ( className.contains(text) ) return true;
+        }
+        return ! methods.isEmpty() && methods.contains(className + '#' + element.getMethodName());
+    }
+
+}
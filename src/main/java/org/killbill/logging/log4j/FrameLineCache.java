@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+
+/**
+ * Bounded (concurrent) cache of rendered frames, shared across events, since
+ * the same (hot) frames appear in most of the logged traces.
+ *
+ * With packaging data lines are keyed by the frame along with its class info
+ * (as an {@link ExtendedStackTraceElement}), otherwise by the plain element.
+ * Once full (arbitrary) entries get dropped to make room.
+ *
+ * @author kares
+ */
+final class FrameLineCache {
+
+    static final FrameLineCache INSTANCE = new FrameLineCache(4096);
+
+    private final ConcurrentMap<Object, String> lines;
+    private final int maxSize;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of cached lines
+     */
+    FrameLineCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.lines = new ConcurrentHashMap<Object, String>(Math.min(maxSize, 256));
+    }
+
+    /**
+     * @param element the frame
+     * @param packaging whether class (packaging) information is to be included
+     * @return the rendered frame (without the leading "\tat ")
+     */
+    String line(final ExtendedStackTraceElement element, final boolean packaging) {
+        final Object key = packaging ? element : element.getStackTraceElement();
+        String line = lines.get(key);
+        if ( line != null ) {
+            hits.increment(); return line;
+        }
+        misses.increment();
+        line = key.toString();
+        if ( maxSize > 0 ) {
+            if ( lines.size() >= maxSize ) evict();
+            lines.put(key, line);
+        }
+        return line;
+    }
+
+    private void evict() {
+        final int targetSize = maxSize - maxSize / 4 - 1;
+        final Iterator<Object> keys = lines.keySet().iterator();
+        while ( lines.size() > targetSize && keys.hasNext() ) {
+            keys.next(); keys.remove();
+        }
+    }
+
+    int size() { return lines.size(); }
+
+    void clear() { lines.clear(); }
+
+    void resetCounts() {
+        hits.reset(); misses.reset();
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 if nothing was looked up
+     */
+    double getHitRatio() {
+        final long hits = this.hits.sum(); final long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.BitSet;
+
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+
+/**
+ * Encodes an (extended) throwable proxy as a JSON object, straight into the buffer :
+ * <pre>
+ * { "name": "java.lang.IllegalStateException", "message": "...", "commonElementCount": 0,
+ *   "frames": [ { "class": "...", "method": "...", "file": "...", "line": 42,
+ *                 "location": "foo-1.0.jar", "version": "1.0", "exact": true }, ... ],
+ *   "recursion": { "start": 12, "period": 8, "repeated": 126 },
+ *   "cause": { ... }, "suppressed": [ { ... } ] }
+ * </pre>
+ * Packaging data (location, version, exact) is left out if not resolved,
+ * recursion, cause and suppressed only appear when present. With recursion
+ * the frames of the first cycle (from start) are followed by those past the
+ * repeated cycles. Collapsed (noise) frames are marked <code>"collapsed": true</code>
+ * and carry no packaging data (they're never resolved).
+ *
+ * @author kares
+ */
+final class JsonThrowableEncoder {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonThrowableEncoder() { /* static utils */ }
+
+    static void encode(final StringBuilder out, final EnhancedThrowableProxy proxy) {
+        out.append("{\"name\":"); appendString(out, proxy.getName());
+        out.append(",\"message\":"); appendString(out, proxy.getMessage());
+        out.append(",\"commonElementCount\":").append(proxy.getCommonElementCount());
+
+        final boolean packaging = proxy.isPackaging();
+        final ExtendedStackTraceElement[] frames = proxy.getExtendedStackTrace();
+        final RecursionFold fold = proxy.getRecursionFold();
+        final BitSet collapsed = proxy.getCollapsedFrames();
+        out.append(",\"frames\":[");
+        for ( int i = 0; i < frames.length; i++ ) {
+            if ( fold != null && i == fold.foldStart() ) {
+                i = fold.foldEnd() - 1; continue;
+            }
+            if ( i > 0 ) out.append(',');
+            appendFrame(out, frames[i], packaging, collapsed != null && collapsed.get(i));
+        }
+        out.append(']');
+
+        if ( fold != null ) {
+            out.append(",\"recursion\":{\"start\":").append(fold.start).
+                append(",\"period\":").append(fold.period).
+                append(",\"repeated\":").append(fold.count - 1).append('}');
+        }
+
+        final EnhancedThrowableProxy cause = proxy.getCauseProxy();
+        if ( cause != null ) {
+            out.append(",\"cause\":"); encode(out, cause);
+        }
+
+        final EnhancedThrowableProxy[] suppressed = proxy.getSuppressedProxies();
+        if ( suppressed != null && suppressed.length > 0 ) {
+            out.append(",\"suppressed\":[");
+            for ( int i = 0; i < suppressed.length; i++ ) {
+                if ( i > 0 ) out.append(',');
+                encode(out, suppressed[i]);
+            }
+            out.append(']');
+        }
+        out.append('}');
+    }
+
+    private static void appendFrame(final StringBuilder out, final ExtendedStackTraceElement frame,
+        final boolean packaging, final boolean collapsed) {
+        out.append("{\"class\":"); appendString(out, frame.getClassName());
+        out.append(",\"method\":"); appendString(out, frame.getMethodName());
+        out.append(",\"file\":"); appendString(out, frame.getFileName());
+        out.append(",\"line\":").append(frame.getLineNumber());
+        if ( collapsed ) {
+            out.append(",\"collapsed\":true");
+        }
+        else if ( packaging ) {
+            out.append(",\"location\":"); appendString(out, frame.getLocation());
+            out.append(",\"version\":"); appendString(out, frame.getVersion());
+            out.append(",\"exact\":").append(frame.getExact());
+        }
+        out.append('}');
+    }
+
+    static void appendString(final StringBuilder out, final String str) {
+        if ( str == null ) { out.append("null"); return; }
+
+        out.append('"');
+        int start = 0; final int len = str.length();
+        for ( int i = 0; i < len; i++ ) {
+            final char c = str.charAt(i);
+            if ( c >= 0x20 && c != '"' && c != '\\' ) continue;
+
+            out.append(str, start, i); start = i + 1;
+            switch ( c ) {
+                case '"' : out.append("\\\""); break;
+                case '\\' : out.append("\\\\"); break;
+                case '\n' : out.append("\\n"); break;
+                case '\r' : out.append("\\r"); break;
+                case '\t' : out.append("\\t"); break;
+                case '\b' : out.append("\\b"); break;
+                case '\f' : out.append("\\f"); break;
+                default : out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        out.append(str, start, len).append('"');
+    }
+
+}
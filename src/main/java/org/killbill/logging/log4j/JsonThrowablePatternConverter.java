@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.pattern.ConverterKeys;
+import org.apache.logging.log4j.core.pattern.PatternConverter;
+
+/**
+ * Outputs the (extended) stack-trace as a single line JSON object, meant for
+ * JSON-like patterns e.g. <code>{"message":"%enc{%m}","thrown":%jEx}</code>
+ * (<code>null</code> is written for events without a throwable).
+ *
+ * Supports the <code>nopackaging</code> and <code>deferred</code> options of
+ * <code>%yEx</code>, line and package filter options do not apply.
+ *
+ * @see JsonThrowableEncoder
+ *
+ * @author kares
+ */
+@Plugin(name = "JsonThrowablePatternConverter", category = PatternConverter.CATEGORY)
+@ConverterKeys({ "jEx", "jThrowable", "jException" })
+public class JsonThrowablePatternConverter extends YmprovedThrowablePatternConverter {
+
+    protected JsonThrowablePatternConverter(final Configuration config, final String[] options) {
+        super(config, options);
+    }
+
+    public static JsonThrowablePatternConverter newInstance(final Configuration config, final String[] options) {
+        return new JsonThrowablePatternConverter(config, options);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void format(final LogEvent event, final StringBuilder toAppendTo) {
+        final Throwable thrown = event.getThrown();
+        if ( thrown == null ) {
+            toAppendTo.append("null"); return;
+        }
+        JsonThrowableEncoder.encode(toAppendTo, newThrowableProxy(thrown));
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Learned routing of packages to the class loader that resolved (a class
+ * from) the package, tried when resolving frames that did not match the
+ * caller's class stack and the previous frame's loader did not resolve.
+ * With many (plugin) loaders guessing by the previous frame's loader mostly
+ * misses, a learned route mostly hits.
+ *
+ * A package seen resolved by more than one loader (e.g. the same library in
+ * two web-apps) is ambiguous and not routed, to not resolve from the wrong one.
+ * Ambiguity lasts while both loaders are alive, once the competing one gets
+ * collected (e.g. a re-deployed web-app) the package is routed again.
+ *
+ * A small (lock-free) table indexed by the package's hash, looked up without
+ * allocating (the package is matched as a region of the class name). Routes
+ * are simply replaced on collisions and loaders are weakly held, a route to a
+ * collected loader is dropped.
+ *
+ * @author kares
+ */
+final class LoaderRoutes {
+
+    static final class Route extends WeakReference<ClassLoader> {
+
+        final String pkg;
+        final int hash;
+        private final WeakReference<ClassLoader> competing; // null unless ambiguous
+
+        Route(final String pkg, final int hash, final ClassLoader loader, final ClassLoader competing) {
+            super(loader);
+            this.pkg = pkg;
+            this.hash = hash;
+            this.competing = competing == null ? null : new WeakReference<ClassLoader>(competing);
+        }
+
+        boolean isFor(final String className, final int dot, final int hash) {
+            return this.hash == hash && pkg.length() == dot && className.regionMatches(0, pkg, 0, dot);
+        }
+
+        /**
+         * @return the competing loader (if still alive) - the route is ambiguous
+         */
+        ClassLoader getCompeting() {
+            return competing == null ? null : competing.get();
+        }
+
+    }
+
+    private final AtomicReferenceArray<Route> routes;
+    private final int mask;
+
+    /**
+     * @param maxSize maximum number of (package) routes (rounded up to a power of two)
+     */
+    LoaderRoutes(final int maxSize) {
+        int capacity = 1;
+        while ( capacity < maxSize ) capacity <<= 1;
+        this.routes = new AtomicReferenceArray<Route>(maxSize > 0 ? capacity : 0);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param className the class name
+     * @return the loader that resolved the class' package or null (if none or ambiguous)
+     */
+    ClassLoader loaderFor(final String className) {
+        final int dot = className.lastIndexOf('.');
+        if ( dot <= 0 || routes.length() == 0 ) return null;
+        final int hash = hash(className, dot);
+        final int index = hash & mask;
+        final Route route = routes.get(index);
+        if ( route == null || ! route.isFor(className, dot, hash) ) return null;
+        final ClassLoader loader = route.get();
+        if ( loader == null ) routes.compareAndSet(index, route, null);
+        return route.getCompeting() == null ? loader : null;
+    }
+
+    /**
+     * Remember the loader for the class' package.
+     *
+     * @param className the (resolved) class name
+     * @param loader the loader that resolved the class
+     */
+    void learn(final String className, final ClassLoader loader) {
+        if ( loader == null || routes.length() == 0 ) return; // bootstrap - resolves from anywhere
+        final int dot = className.lastIndexOf('.');
+        if ( dot <= 0 ) return;
+        final int hash = hash(className, dot);
+        final int index = hash & mask;
+        final Route route = routes.get(index);
+        ClassLoader competing = null;
+        if ( route != null && route.isFor(className, dot, hash) ) {
+            final ClassLoader routed = route.get();
+            final ClassLoader contested = route.getCompeting();
+            if ( routed != null && contested != null ) return; // ambiguous (stays while both live)
+            if ( routed == loader ) return;
+            competing = routed; // resolved by another (live) loader
+        }
+        routes.compareAndSet(index, route, new Route(className.substring(0, dot), hash, loader, competing));
+    }
+
+    private static int hash(final String className, final int dot) {
+        int hash = 0;
+        for ( int i = 0; i < dot; i++ ) hash = 31 * hash + className.charAt(i);
+        return hash ^ ( hash >>> 16 );
+    }
+
+    int size() {
+        int size = 0;
+        for ( int i = 0; i < routes.length(); i++ ) {
+            final Route route = routes.get(i);
+            if ( route != null && route.get() != null ) size++;
+        }
+        return size;
+    }
+
+    void clear() {
+        for ( int i = 0; i < routes.length(); i++ ) routes.set(i, null);
+    }
+
+}
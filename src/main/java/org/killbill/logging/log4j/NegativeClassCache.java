@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded (concurrent) cache of class names that failed to resolve.
+ *
+ * Entries are keyed by class name, each holding the (weakly held) loaders
+ * that were tried first - thus a lookup does not allocate, the loader is
+ * only compared on a (class name) hit. Entries expire after a time-to-live
+ * so that a class appearing later (e.g. a plugin being installed) will
+ * eventually resolve.
+ *
+ * @author kares
+ */
+final class NegativeClassCache {
+
+    private final ConcurrentMap<String, Entry> entries;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of remembered class names
+     * @param ttlMillis how long a failed lookup is remembered
+     */
+    NegativeClassCache(final int maxSize, final long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMillis * 1000 * 1000;
+        this.entries = new ConcurrentHashMap<String, Entry>(Math.min(maxSize, 256));
+    }
+
+    /**
+     * @return true if the class is known to not resolve (using the given loader)
+     */
+    boolean isUnresolvable(final ClassLoader loader, final String className) {
+        final Entry first = entries.get(className);
+        for ( Entry entry = first; entry != null; entry = entry.next ) {
+            if ( entry.isFor(loader) ) {
+                final long now = System.nanoTime();
+                if ( entry.expires - now > 0 ) {
+                    hitCount.increment(); return true;
+                }
+                if ( isStale(first, now) ) entries.remove(className, first);
+                break; // otherwise replaced once marked again
+            }
+        }
+        missCount.increment();
+        return false;
+    }
+
+    void markUnresolvable(final ClassLoader loader, final String className) {
+        if ( maxSize <= 0 ) return;
+        final long now = System.nanoTime();
+        while ( true ) {
+            final Entry prev = entries.get(className);
+            if ( prev == null && entries.size() >= maxSize ) evict(now);
+            final Entry entry = new Entry(loader, now + ttlNanos, retained(prev, loader, now));
+            if ( prev == null ? entries.putIfAbsent(className, entry) == null : entries.replace(className, prev, entry) ) {
+                return;
+            }
+        }
+    }
+
+    // the chain without entries for the loader and stale ones
+    private static Entry retained(final Entry entry, final ClassLoader loader, final long now) {
+        if ( entry == null ) return null;
+        final Entry next = retained(entry.next, loader, now);
+        if ( entry.isFor(loader) || entry.isStale(now) ) return next;
+        return next == entry.next ? entry : new Entry(entry.loader, entry.expires, next);
+    }
+
+    private void evict(final long now) {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ( it.hasNext() ) { // first drop expired and collected entries
+            if ( isStale(it.next().getValue(), now) ) it.remove();
+        }
+        // still full - make room by dropping (arbitrary) entries
+        final int targetSize = maxSize - maxSize / 4 - 1;
+        final Iterator<String> keys = entries.keySet().iterator();
+        while ( entries.size() > targetSize && keys.hasNext() ) {
+            keys.next(); keys.remove();
+        }
+    }
+
+    private static boolean isStale(Entry entry, final long now) {
+        for ( ; entry != null; entry = entry.next ) {
+            if ( ! entry.isStale(now) ) return false;
+        }
+        return true;
+    }
+
+    int size() { return entries.size(); }
+
+    void clear() { entries.clear(); }
+
+    long getHitCount() { return hitCount.sum(); }
+
+    long getMissCount() { return missCount.sum(); }
+
+    void resetCounts() {
+        hitCount.reset(); missCount.reset();
+    }
+
+    private static final class Entry {
+
+        private final WeakReference<ClassLoader> loader; // null for the boot loader
+        final long expires;
+        final Entry next; // same class name, tried with another loader
+
+        Entry(final ClassLoader loader, final long expires, final Entry next) {
+            this(loader == null ? null : new WeakReference<ClassLoader>(loader), expires, next);
+        }
+
+        Entry(final WeakReference<ClassLoader> loader, final long expires, final Entry next) {
+            this.loader = loader;
+            this.expires = expires;
+            this.next = next;
+        }
+
+        boolean isFor(final ClassLoader loader) {
+            if ( this.loader == null ) return loader == null;
+            return loader != null && this.loader.get() == loader;
+        }
+
+        boolean isStale(final long now) {
+            return expires - now <= 0 || ( loader != null && loader.get() == null );
+        }
+
+    }
+
+}
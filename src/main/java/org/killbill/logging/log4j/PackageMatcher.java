@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Matches class names against (ignored) package prefixes, compiled into a
+ * prefix trie so that the cost per class name does not depend on the number
+ * of packages. Decisions are remembered per class name (in a bounded cache).
+ *
+ * @author kares
+ */
+final class PackageMatcher {
+
+    static final PackageMatcher NONE = new PackageMatcher(null);
+
+    private static final int MAX_CACHED_DECISIONS = 2048;
+
+    private static final class Node {
+
+        char[] chars = new char[0];
+        Node[] children = new Node[0];
+        boolean terminal; // a prefix ends here
+
+        Node child(final char c) {
+            final int i = Arrays.binarySearch(chars, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node addChild(final char c) {
+            int i = Arrays.binarySearch(chars, c);
+            if ( i >= 0 ) return children[i];
+            i = -(i + 1);
+            final char[] chars = new char[this.chars.length + 1];
+            final Node[] children = new Node[chars.length];
+            System.arraycopy(this.chars, 0, chars, 0, i);
+            System.arraycopy(this.children, 0, children, 0, i);
+            System.arraycopy(this.chars, i, chars, i + 1, this.chars.length - i);
+            System.arraycopy(this.children, i, children, i + 1, this.children.length - i);
+            final Node child = new Node();
+            chars[i] = c; children[i] = child;
+            this.chars = chars; this.children = children;
+            return child;
+        }
+
+    }
+
+    private final Node root;
+    private final ConcurrentMap<String, Boolean> decisions;
+
+    private PackageMatcher(final Node root) {
+        this.root = root;
+        this.decisions = root == null ? null : new ConcurrentHashMap<String, Boolean>(256);
+    }
+
+    static PackageMatcher compile(final Collection<String> packages) {
+        if ( packages == null || packages.isEmpty() ) return NONE;
+
+        final Node root = new Node();
+        for ( final String pkg : packages ) {
+            Node node = root;
+            for ( int i = 0; i < pkg.length(); i++ ) node = node.addChild(pkg.charAt(i));
+            node.terminal = true;
+        }
+        return new PackageMatcher(root);
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * @param className the class name
+     * @return true if the class name starts with one of the packages
+     */
+    boolean matches(final String className) {
+        if ( root == null ) return false;
+
+        final Boolean decision = decisions.get(className);
+        if ( decision != null ) return decision;
+
+        final boolean match = matchPrefix(className);
+        if ( decisions.size() >= MAX_CACHED_DECISIONS ) decisions.clear();
+        decisions.put(className, match);
+        return match;
+    }
+
+    private boolean matchPrefix(final String className) {
+        Node node = root;
+        if ( node.terminal ) return true; // empty package
+        for ( int i = 0; i < className.length(); i++ ) {
+            node = node.child(className.charAt(i));
+            if ( node == null ) return false;
+            if ( node.terminal ) return true;
+        }
+        return false;
+    }
+
+}
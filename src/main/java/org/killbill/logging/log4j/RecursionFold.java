@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.io.Serializable;
+
+/**
+ * A repeating cycle of frames in a stack-trace (e.g. from a StackOverflowError),
+ * only its first cycle is resolved and printed, the rest gets folded.
+ *
+ * @author kares
+ */
+final class RecursionFold implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MIN_LENGTH = 32; // do not bother with short traces
+    private static final int MAX_PERIOD = 64;
+    private static final int MIN_REPEATS = 4;
+    private static final int ANCHOR_STEP = 16;
+
+    /**
+     * Index of the first frame of the (first) cycle.
+     */
+    final int start;
+    /**
+     * Number of frames in a cycle.
+     */
+    final int period;
+    /**
+     * Number of (complete) cycles.
+     */
+    final int count;
+
+    RecursionFold(final int start, final int period, final int count) {
+        this.start = start;
+        this.period = period;
+        this.count = count;
+    }
+
+    /**
+     * @return index of the first frame being folded
+     */
+    int foldStart() {
+        return start + period;
+    }
+
+    /**
+     * @return index past the last frame being folded
+     */
+    int foldEnd() {
+        return start + count * period;
+    }
+
+    /**
+     * @param index the frame index
+     * @return whether the frame is a repetition of a frame that follows (from a later cycle)
+     */
+    boolean isRepeated(final int index) {
+        return index >= start && index + period < foldEnd();
+    }
+
+    /**
+     * Detect the (largest) repeating cycle of frames.
+     *
+     * @param trace the stack trace
+     * @param length the number of frames to consider
+     * @return the fold or null if there's no (considerable) recursion
+     */
+    static RecursionFold detect(final StackTraceElement[] trace, final int length) {
+        if ( length < MIN_LENGTH ) return null;
+
+        final int maxPeriod = Math.min(MAX_PERIOD, length / MIN_REPEATS);
+        if ( ! hasRepeatedFrame(trace, length, maxPeriod) ) return null; // the common case
+
+        final int[] hashes = new int[length];
+        for ( int i = 0; i < length; i++ ) hashes[i] = trace[i].hashCode();
+
+        int bestStart = 0, bestPeriod = 0, bestCount = 0;
+        for ( int period = 1; period <= maxPeriod; period++ ) {
+            int run = 0; // consecutive frames equal to the one a period later
+            for ( int i = 0; i <= length - period; i++ ) {
+                if ( i < length - period && hashes[i] == hashes[i + period] && trace[i].equals(trace[i + period]) ) {
+                    run++; continue;
+                }
+                final int count = ( run + period ) / period;
+                if ( count >= MIN_REPEATS && count * period > bestCount * bestPeriod ) {
+                    bestStart = i - run; bestPeriod = period; bestCount = count;
+                }
+                run = 0;
+            }
+        }
+        return bestCount == 0 ? null : new RecursionFold(bestStart, bestPeriod, bestCount);
+    }
+
+    // whether an anchor frame (the top one and every ANCHOR_STEP-th) repeats within a period,
+    // cycles (repeated) over more than ANCHOR_STEP frames always span an anchor - thus are found
+    private static boolean hasRepeatedFrame(final StackTraceElement[] trace, final int length, final int maxPeriod) {
+        for ( int anchor = 0; anchor < length - 1; anchor += ANCHOR_STEP ) {
+            final StackTraceElement frame = trace[anchor];
+            final int line = frame.getLineNumber();
+            final int end = Math.min(anchor + maxPeriod, length - 1);
+            for ( int i = anchor + 1; i <= end; i++ ) {
+                if ( trace[i].getLineNumber() == line && trace[i].equals(frame) ) return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the rendered trace of recently formatted throwable instances,
+ * the same instance is often logged at several layers while being re-thrown.
+ *
+ * A small (lock-free) table indexed by identity hash, throwables are weakly
+ * referenced and entries are simply replaced on collisions. Entries do not
+ * hold the proxy since it references its throwable. Only traces up to
+ * {@link #MAX_TRACE_LENGTH} are remembered (copied) and entries are dropped
+ * once their throwable has been collected.
+ *
+ * @author kares
+ */
+final class RenderedTraceCache {
+
+    static final int MAX_TRACE_LENGTH = 16 * 1024; // chars
+
+    static final class Entry extends WeakReference<Throwable> {
+
+        final int index;
+        final CharSequence trace;
+        final long fingerprint;
+        final long rateKey; // TraceRateLimiter key (0 if not rate limited)
+
+        Entry(final Throwable throwable, final ReferenceQueue<Throwable> queue, final int index,
+            final CharSequence trace, final long fingerprint, final long rateKey) {
+            super(throwable, queue);
+            this.index = index;
+            this.trace = trace;
+            this.fingerprint = fingerprint;
+            this.rateKey = rateKey;
+        }
+
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final ReferenceQueue<Throwable> collected = new ReferenceQueue<Throwable>();
+
+    /**
+     * @param size the table size (rounded up to a power of two)
+     */
+    RenderedTraceCache(final int size) {
+        int capacity = 1;
+        while ( capacity < size ) capacity <<= 1;
+        this.entries = new AtomicReferenceArray<Entry>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    Entry get(final Throwable throwable) {
+        final Entry entry = entries.get(System.identityHashCode(throwable) & mask);
+        return entry != null && entry.get() == throwable ? entry : null;
+    }
+
+    /**
+     * @param throwable the formatted throwable
+     * @param rendered the output its trace has been rendered to
+     * @param start the trace's start index in the output
+     * @param fingerprint the trace's fingerprint (0 if not deduplicating)
+     * @param rateKey the rate limiter key (0 if not rate limited)
+     */
+    void put(final Throwable throwable, final StringBuilder rendered, final int start,
+        final long fingerprint, final long rateKey) {
+        expungeCollected();
+        if ( rendered.length() - start > MAX_TRACE_LENGTH ) return; // re-rendered if logged again
+
+        final int index = System.identityHashCode(throwable) & mask;
+        entries.set(index, new Entry(throwable, collected, index, rendered.substring(start), fingerprint, rateKey));
+    }
+
+    private void expungeCollected() {
+        Reference<? extends Throwable> ref;
+        while ( ( ref = collected.poll() ) != null ) {
+            final Entry entry = (Entry) ref;
+            entries.compareAndSet(entry.index, entry, null);
+        }
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * A filter aggregating logged throwables by their (structural) fingerprint over
+ * a time window, at the end of each window a summary event gets logged for every
+ * fingerprint seen : the count, first and last seen times, (some of) the threads
+ * involved and a sample trace.
+ *
+ * Aggregation on the logging thread is a (cause chain) fingerprint and a few
+ * concurrent counter updates, traces are only rendered once the window is flushed.
+ * Events with a throwable are matched, note that <code>onMatch="DENY"</code> drops
+ * the whole event - its message included. To keep logging the messages but turn
+ * full per-event traces off leave the (default) neutral result and have the
+ * appender's layout not print throwables e.g. using <code>%yEx{none}</code> :
+ * <pre>
+ *   &lt;Appenders&gt;
+ *     &lt;File name="File" fileName="app.log"&gt;
+ *       &lt;PatternLayout pattern="%d %p %c - %m%n%yEx{none}"/&gt;
+ *       &lt;ThrowableAggregationFilter windowSeconds="60"/&gt;
+ *     &lt;/File&gt;
+ *     &lt;File name="Summary" fileName="traces.log"&gt;
+ *       &lt;PatternLayout pattern="%d %m%n"/&gt;
+ *     &lt;/File&gt;
+ *   &lt;/Appenders&gt;
+ *   &lt;Loggers&gt;
+ *     &lt;Logger name="org.killbill.logging.log4j.ThrowableAggregation" additivity="false"&gt;
+ *       &lt;AppenderRef ref="Summary"/&gt;
+ *     &lt;/Logger&gt;
+ * </pre>
+ * Summary events (having no throwable) are logged using the <code>loggerName</code>.
+ * The last (partial) window is not reported on stop, by then appenders are stopped.
+ *
+ * @author kares
+ */
+@Plugin(name = "ThrowableAggregationFilter", category = Node.CATEGORY, elementType = Filter.ELEMENT_TYPE, printObject = true)
+public final class ThrowableAggregationFilter extends AbstractFilter {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String DEFAULT_LOGGER_NAME = "org.killbill.logging.log4j.ThrowableAggregation";
+
+    private static final int MAX_THREADS = 8; // remembered per fingerprint
+
+    static final class Aggregate {
+
+        final Throwable sample;
+        final long firstSeen;
+        final AtomicLong lastSeen;
+        final LongAdder count = new LongAdder();
+        final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+
+        Aggregate(final Throwable sample, final long time) {
+            this.sample = sample;
+            this.firstSeen = time;
+            this.lastSeen = new AtomicLong(time);
+        }
+
+        void occurred(final long time, final String thread) {
+            count.increment();
+            long last;
+            while ( time > ( last = lastSeen.get() ) ) {
+                if ( lastSeen.compareAndSet(last, time) ) break;
+            }
+            if ( thread != null && threads.size() < MAX_THREADS ) threads.add(thread);
+        }
+
+    }
+
+    private static final class Window {
+
+        final long start;
+        final ConcurrentMap<Long, Aggregate> aggregates = new ConcurrentHashMap<Long, Aggregate>(64);
+        final LongAdder overflow = new LongAdder(); // not aggregated - too many fingerprints
+        final LongAdder writers = new LongAdder(); // threads aggregating into the window
+
+        Window(final long start) { this.start = start; }
+
+    }
+
+    private final long windowMillis;
+    private final int maxFingerprints;
+    private final String loggerName;
+    private final Level level;
+
+    private final AtomicReference<Window> window;
+    private transient ScheduledExecutorService scheduler;
+
+    ThrowableAggregationFilter(final long windowMillis, final int maxFingerprints,
+        final String loggerName, final Level level, final Result onMatch, final Result onMismatch) {
+        super(onMatch, onMismatch);
+        this.windowMillis = windowMillis;
+        this.maxFingerprints = maxFingerprints;
+        this.loggerName = loggerName;
+        this.level = level;
+        this.window = new AtomicReference<Window>(new Window(System.currentTimeMillis()));
+    }
+
+    @Override
+    public Result filter(final LogEvent event) {
+        final Throwable thrown = event.getThrown();
+        if ( thrown == null ) return onMismatch;
+        aggregate(thrown, event.getTimeMillis(), event.getThreadName());
+        return onMatch;
+    }
+
+    void aggregate(final Throwable thrown, final long time, final String thread) {
+        final Long fingerprint = EnhancedThrowableProxy.fingerprintOf(thrown);
+        final Window window = enterWindow();
+        try {
+            Aggregate aggregate = window.aggregates.get(fingerprint);
+            if ( aggregate == null ) {
+                if ( window.aggregates.size() >= maxFingerprints ) {
+                    window.overflow.increment(); return;
+                }
+                final Aggregate newAggregate = new Aggregate(thrown, time);
+                aggregate = window.aggregates.putIfAbsent(fingerprint, newAggregate);
+                if ( aggregate == null ) aggregate = newAggregate;
+            }
+            aggregate.occurred(time, thread);
+        }
+        finally {
+            window.writers.decrement();
+        }
+    }
+
+    // a window entered is not summarized before its writers leave (see flush)
+    private Window enterWindow() {
+        while ( true ) {
+            final Window window = this.window.get();
+            window.writers.increment();
+            if ( this.window.get() == window ) return window;
+            window.writers.decrement(); // ended meanwhile
+        }
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "log4j2-ext-aggregation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() { report(); }
+        }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if ( scheduler != null ) {
+            scheduler.shutdownNow(); scheduler = null;
+        }
+        // appenders are stopped (before filters) thus the last window is not logged
+        final int pending = window.getAndSet(new Window(System.currentTimeMillis())).aggregates.size();
+        if ( pending > 0 ) {
+            StatusLogger.getLogger().debug("{} aggregated trace(s) not reported on stop", pending);
+        }
+        super.stop();
+    }
+
+    private void report() {
+        try {
+            final List<String> summaries = flush();
+            if ( summaries.isEmpty() ) return;
+            final org.apache.logging.log4j.Logger logger = LogManager.getLogger(loggerName);
+            for ( final String summary : summaries ) logger.log(level, summary);
+        }
+        catch (final RuntimeException e) {
+            StatusLogger.getLogger().error("failed reporting aggregated throwables", e);
+        }
+    }
+
+    /**
+     * End the current window (and start a new one).
+     *
+     * @return summary messages for the ended window (most frequent first)
+     */
+    List<String> flush() {
+        final long now = System.currentTimeMillis();
+        final Window ended = window.getAndSet(new Window(now));
+        while ( ended.writers.sum() != 0 ) Thread.yield(); // let aggregating threads finish
+
+        final List<Map.Entry<Long, Aggregate>> entries = new ArrayList<Map.Entry<Long, Aggregate>>(ended.aggregates.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Long, Aggregate>>() {
+            @Override
+            public int compare(final Map.Entry<Long, Aggregate> e1, final Map.Entry<Long, Aggregate> e2) {
+                final long c1 = e1.getValue().count.sum(); final long c2 = e2.getValue().count.sum();
+                return c1 < c2 ? 1 : ( c1 == c2 ? 0 : -1 );
+            }
+        });
+
+        final List<String> summaries = new ArrayList<String>(entries.size() + 1);
+        for ( final Map.Entry<Long, Aggregate> entry : entries ) {
+            summaries.add(summarize(entry.getKey(), entry.getValue(), now - ended.start));
+        }
+        final long overflow = ended.overflow.sum();
+        if ( overflow > 0 ) {
+            summaries.add(overflow + " throwables not aggregated (over " + maxFingerprints + " distinct traces)");
+        }
+        return summaries;
+    }
+
+    private static String summarize(final long fingerprint, final Aggregate aggregate, final long windowMillis) {
+        final StringBuilder summary = new StringBuilder(256);
+        summary.append(aggregate.count.sum()).append(" x [trace ").append(Long.toHexString(fingerprint)).
+            append("] in ").append(windowMillis / 1000).append("s, first seen ").
+            append(String.format("%tFT%<tT.%<tL", aggregate.firstSeen)).append(", last seen ").
+            append(String.format("%tFT%<tT.%<tL", aggregate.lastSeen.get())).
+            append(", threads ").append(aggregate.threads).append(Constants.LINE_SEPARATOR);
+        // rendered (with packaging) only now, off the logging thread
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(aggregate.sample, true, null);
+        final TraceWriter out = new TraceWriter(summary, Integer.MAX_VALUE, Constants.LINE_SEPARATOR, true);
+        proxy.formatExtendedStackTrace(out, PackageMatcher.NONE);
+        return summary.toString();
+    }
+
+    long getWindowMillis() { return windowMillis; }
+
+    @Override
+    public String toString() {
+        return "windowSeconds=" + windowMillis / 1000 + ", maxFingerprints=" + maxFingerprints + ", loggerName=" + loggerName;
+    }
+
+    /**
+     * @param windowSeconds the aggregation window (defaults to a minute)
+     * @param maxFingerprints maximum distinct traces aggregated in a window
+     * @param loggerName the logger summary events are logged with
+     * @param level the level of summary events
+     * @param match result for events with a throwable
+     * @param mismatch result for events without a throwable
+     * @return the filter
+     */
+    @PluginFactory
+    public static ThrowableAggregationFilter createFilter(
+        @PluginAttribute(value = "windowSeconds", defaultLong = 60) final long windowSeconds,
+        @PluginAttribute(value = "maxFingerprints", defaultInt = 1000) final int maxFingerprints,
+        @PluginAttribute(value = "loggerName", defaultString = DEFAULT_LOGGER_NAME) final String loggerName,
+        @PluginAttribute("level") final Level level,
+        @PluginAttribute("onMatch") final Result match,
+        @PluginAttribute("onMismatch") final Result mismatch) {
+        return new ThrowableAggregationFilter(Math.max(windowSeconds, 1) * 1000, maxFingerprints, loggerName,
+            level == null ? Level.WARN : level,
+            match == null ? Result.NEUTRAL : match,
+            mismatch == null ? Result.NEUTRAL : mismatch);
+    }
+
+}
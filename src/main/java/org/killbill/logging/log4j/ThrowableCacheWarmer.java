@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Pre-warms the (packaging) class information caches in the background, so
+ * that the first traces after start-up do not pay for reading jar meta-data
+ * and (cold) class loading while the application is likely struggling.
+ *
+ * Runs on a (daemon) thread with the lowest priority and stops once the time
+ * budget is used up. Warms-up trace rendering, then resolves all class-path
+ * jars (versions) and finally loads (without initializing) classes from the
+ * given packages. Start it using {@link #start(ClassLoader, Collection, long)}
+ * or the <code>%yEx{prewarm(budgetMillis,com.acme.,org.hibernate.)}</code> option.
+ *
+ * @author kares
+ */
+public final class ThrowableCacheWarmer implements Runnable {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final AtomicBoolean configured = new AtomicBoolean();
+
+    private final ClassLoader loader;
+    private final Collection<String> packages;
+    private final long budgetMillis;
+
+    private volatile int codeSources;
+    private volatile int classes;
+
+    ThrowableCacheWarmer(final ClassLoader loader, final Collection<String> packages, final long budgetMillis) {
+        this.loader = loader;
+        this.packages = packages == null ? Collections.<String>emptyList() : packages;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Start pre-warming in the background.
+     *
+     * @param loader the loader to resolve class-path entries and load classes from
+     * (null for the current thread's context loader)
+     * @param packages package (name) prefixes to load classes from (might be empty)
+     * @param budgetMillis the time budget
+     * @return the (started) thread
+     */
+    public static Thread start(final ClassLoader loader, final Collection<String> packages, final long budgetMillis) {
+        final ClassLoader classLoader = loader == null ? Thread.currentThread().getContextClassLoader() : loader;
+        final Thread thread = new Thread(new ThrowableCacheWarmer(classLoader, packages, budgetMillis), "log4j2-ext-prewarm");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    // started once from (converter) configuration
+    static void startConfigured(final Collection<String> packages, final long budgetMillis) {
+        if ( configured.compareAndSet(false, true) ) start(null, packages, budgetMillis);
+    }
+
+    @Override
+    public void run() {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + budgetMillis;
+        try {
+            // loads (and warms up) our rendering classes as well as CallerClasses
+            new EnhancedThrowableProxy(new Exception("prewarm")).getExtendedStackTraceAsString();
+
+            final List<URL> classPath = classPath(loader);
+            for ( final URL url : classPath ) {
+                if ( System.currentTimeMillis() >= deadline ) break;
+                if ( ClassInfoCache.prewarm(url) ) codeSources++;
+            }
+
+            if ( ! packages.isEmpty() ) {
+                for ( final URL url : classPath ) {
+                    if ( System.currentTimeMillis() >= deadline ) break;
+                    loadClasses(url, deadline);
+                }
+            }
+        }
+        catch (final RuntimeException e) {
+            LOGGER.info("pre-warming failed {}", e);
+        }
+        catch (final LinkageError e) {
+            LOGGER.info("pre-warming failed {}", e);
+        }
+        LOGGER.debug("pre-warmed {} code sources and {} classes in {} ms", codeSources, classes, System.currentTimeMillis() - start);
+    }
+
+    int getCodeSources() { return codeSources; }
+
+    int getClasses() { return classes; }
+
+    private static List<URL> classPath(final ClassLoader loader) {
+        final Set<URL> urls = new LinkedHashSet<URL>();
+        for ( ClassLoader l = loader; l != null; l = l.getParent() ) {
+            if ( l instanceof URLClassLoader ) {
+                for ( final URL url : ( (URLClassLoader) l ).getURLs() ) urls.add(url);
+            }
+        }
+        final String classPath = System.getProperty("java.class.path");
+        if ( classPath != null ) {
+            for ( final String path : classPath.split(File.pathSeparator) ) {
+                if ( path.isEmpty() ) continue;
+                try {
+                    urls.add(new File(path).toURI().toURL());
+                }
+                catch (final IOException e) {
+                    LOGGER.debug("invalid class-path entry: {} {}", path, e);
+                }
+            }
+        }
+        return new ArrayList<URL>(urls);
+    }
+
+    private void loadClasses(final URL url, final long deadline) {
+        if ( ! "file".equals(url.getProtocol()) ) return;
+        try {
+            final File file = new File(url.toURI());
+            if ( file.isFile() ) {
+                final JarFile jar = new JarFile(file, false);
+                try {
+                    final Enumeration<JarEntry> entries = jar.entries();
+                    while ( entries.hasMoreElements() && System.currentTimeMillis() < deadline ) {
+                        loadClass(entries.nextElement().getName());
+                    }
+                }
+                finally { jar.close(); }
+            }
+            else if ( file.isDirectory() ) {
+                loadClasses(file, "", deadline);
+            }
+        }
+        catch (final Exception e) {
+            LOGGER.debug("pre-warming classes from {} failed {}", url, e);
+        }
+    }
+
+    private void loadClasses(final File dir, final String path, final long deadline) {
+        final File[] files = dir.listFiles();
+        if ( files == null ) return;
+        for ( final File file : files ) {
+            if ( System.currentTimeMillis() >= deadline ) return;
+            final String name = path + file.getName();
+            if ( file.isDirectory() ) loadClasses(file, name + '/', deadline);
+            else loadClass(name);
+        }
+    }
+
+    private void loadClass(final String entryName) {
+        if ( ! entryName.endsWith(".class") || entryName.indexOf('-') >= 0 ) return; // e.g. module-info
+        final String className = entryName.substring(0, entryName.length() - 6).replace('/', '.');
+        if ( ! matchesPackage(className) ) return;
+        try {
+            ClassInfoCache.getEntry(Class.forName(className, false, loader));
+            classes++;
+        }
+        catch (final ClassNotFoundException e) { /* not visible from loader */ }
+        catch (final LinkageError e) { /* missing (optional) dependency */ }
+    }
+
+    private boolean matchesPackage(final String className) {
+        for ( final String pkg : packages ) {
+            if ( className.startsWith(pkg) ) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Low overhead (striped) counters of the throwable rendering work.
+ *
+ * The MBean is registered for as long as a configuration using the converter
+ * is running, the MBean server holds it strongly and would otherwise pin the
+ * (web-app) loader of the extension after the logger context got stopped.
+ *
+ * @author kares
+ */
+final class ThrowableRenderingMetrics implements ThrowableRenderingMetricsMBean {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    static final String OBJECT_NAME = "org.killbill.logging.log4j:type=ThrowableRendering";
+
+    static final ThrowableRenderingMetrics INSTANCE = new ThrowableRenderingMetrics();
+
+    // guarded by ThrowableRenderingMetrics.class
+    private static int registrations;
+    private static ObjectName registeredName;
+
+    private static final int HISTOGRAM_BUCKETS = 40; // last one is for >= 2^38 ns (~ 4.5 min)
+
+    final LongAdder eventsRendered = new LongAdder();
+    final LongAdder proxiesBuilt = new LongAdder();
+    final LongAdder framesResolved = new LongAdder();
+    final LongAdder classCacheHits = new LongAdder();
+    final LongAdder classCacheMisses = new LongAdder();
+    final LongAdder loadClassAttempts = new LongAdder();
+    final LongAdder loadClassFailures = new LongAdder();
+    final LongAdder charsEmitted = new LongAdder();
+
+    private final LongAdder captureNanos = new LongAdder();
+    private final LongAdder enrichmentNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+    private final LongAdder[] eventNanos = new LongAdder[HISTOGRAM_BUCKETS];
+
+    private volatile boolean timing;
+
+    ThrowableRenderingMetrics() {
+        for ( int i = 0; i < eventNanos.length; i++ ) eventNanos[i] = new LongAdder();
+    }
+
+    /**
+     * Register with the platform MBean server until the configuration stops.
+     *
+     * @param config the configuration (null if none - the MBean stays registered)
+     */
+    static void register(final Configuration config) {
+        if ( config == null ) { register(); return; }
+        synchronized (ThrowableRenderingMetrics.class) {
+            if ( config.getAppender(Registration.NAME) != null ) return; // once per configuration
+            final Registration registration = new Registration();
+            registration.start();
+            config.addAppender(registration);
+            register();
+        }
+    }
+
+    /**
+     * Register with the platform MBean server, registrations are counted and the
+     * MBean is unregistered once the last one is {@link #unregister()}-ed.
+     */
+    static synchronized void register() {
+        if ( registrations++ > 0 ) return;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if ( server.isRegistered(name) ) { // e.g. loaded by another (web-app) loader
+                final ClassLoader loader = ThrowableRenderingMetrics.class.getClassLoader();
+                name = new ObjectName(OBJECT_NAME + ",loader=" + Integer.toHexString(System.identityHashCode(loader)));
+            }
+            server.registerMBean(new StandardMBean(INSTANCE, ThrowableRenderingMetricsMBean.class), name);
+            registeredName = name;
+        }
+        catch (final JMException e) {
+            LOGGER.info("failed registering {} MBean {}", OBJECT_NAME, e);
+        }
+        catch (final SecurityException e) {
+            LOGGER.info("not permitted to register {} MBean {}", OBJECT_NAME, e);
+        }
+    }
+
+    static synchronized void unregister() {
+        if ( registrations == 0 || --registrations > 0 ) return;
+        final ObjectName name = registeredName;
+        if ( name == null ) return;
+        registeredName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (final JMException e) {
+            LOGGER.info("failed unregistering {} MBean {}", name, e);
+        }
+        catch (final SecurityException e) {
+            LOGGER.info("not permitted to unregister {} MBean {}", name, e);
+        }
+    }
+
+    /**
+     * @return the name the MBean is registered with (null if not registered)
+     */
+    static synchronized ObjectName getObjectName() {
+        return registeredName;
+    }
+
+    static synchronized int getRegistrations() {
+        return registrations;
+    }
+
+    /**
+     * Ties the registration to a configuration's life-cycle : Log4j 2.1 has no
+     * configuration stop listener but stops all of its (started) appenders.
+     * Not referenced by any logger, thus never appended to.
+     */
+    static final class Registration extends AbstractAppender {
+
+        private static final long serialVersionUID = 1L;
+
+        static final String NAME = ThrowableRenderingMetrics.class.getName();
+
+        Registration() {
+            super(NAME, null, null);
+        }
+
+        @Override
+        public void append(final LogEvent event) { /* never appended to */ }
+
+        @Override
+        public void stop() {
+            if ( ! isStarted() ) return;
+            super.stop();
+            unregister();
+        }
+
+    }
+
+    /**
+     * @return whether timings should be measured
+     */
+    boolean isTiming() {
+        return timing;
+    }
+
+    void timed(final long captureNanos, final long enrichmentNanos, final long renderNanos) {
+        this.captureNanos.add(captureNanos);
+        this.enrichmentNanos.add(enrichmentNanos);
+        this.renderNanos.add(renderNanos);
+        final long total = captureNanos + enrichmentNanos + renderNanos;
+        final int bucket = 64 - Long.numberOfLeadingZeros(total); // total < 2^bucket
+        eventNanos[Math.min(bucket, HISTOGRAM_BUCKETS - 1)].increment();
+    }
+
+    void resolved(final int frames, final int cacheHits, final int cacheMisses) {
+        framesResolved.add(frames);
+        if ( cacheHits > 0 ) classCacheHits.add(cacheHits);
+        if ( cacheMisses > 0 ) classCacheMisses.add(cacheMisses);
+    }
+
+    @Override
+    public long getEventsRendered() { return eventsRendered.sum(); }
+
+    @Override
+    public long getProxiesBuilt() { return proxiesBuilt.sum(); }
+
+    @Override
+    public long getFramesResolved() { return framesResolved.sum(); }
+
+    @Override
+    public long getClassCacheHits() { return classCacheHits.sum(); }
+
+    @Override
+    public long getClassCacheMisses() { return classCacheMisses.sum(); }
+
+    @Override
+    public long getLoadClassAttempts() { return loadClassAttempts.sum(); }
+
+    @Override
+    public long getLoadClassFailures() { return loadClassFailures.sum(); }
+
+    @Override
+    public long getNegativeClassCacheHits() { return EnhancedThrowableProxy.negativeClassCache.getHitCount(); }
+
+    @Override
+    public long getNegativeClassCacheMisses() { return EnhancedThrowableProxy.negativeClassCache.getMissCount(); }
+
+    @Override
+    public int getNegativeClassCacheSize() { return EnhancedThrowableProxy.negativeClassCache.size(); }
+
+    @Override
+    public long getCharsEmitted() { return charsEmitted.sum(); }
+
+    @Override
+    public long getFrameLineCacheHits() { return FrameLineCache.INSTANCE.hits.sum(); }
+
+    @Override
+    public long getFrameLineCacheMisses() { return FrameLineCache.INSTANCE.misses.sum(); }
+
+    @Override
+    public double getFrameLineCacheHitRatio() { return FrameLineCache.INSTANCE.getHitRatio(); }
+
+    @Override
+    public int getFrameLineCacheSize() { return FrameLineCache.INSTANCE.size(); }
+
+    @Override
+    public boolean isTimingEnabled() { return timing; }
+
+    @Override
+    public void setTimingEnabled(final boolean enabled) { this.timing = enabled; }
+
+    @Override
+    public long getCaptureNanos() { return captureNanos.sum(); }
+
+    @Override
+    public long getEnrichmentNanos() { return enrichmentNanos.sum(); }
+
+    @Override
+    public long getRenderNanos() { return renderNanos.sum(); }
+
+    @Override
+    public long[] getEventNanosHistogram() {
+        final long[] histogram = new long[eventNanos.length];
+        for ( int i = 0; i < histogram.length; i++ ) histogram[i] = eventNanos[i].sum();
+        return histogram;
+    }
+
+    @Override
+    public long getEventNanos50thPercentile() {
+        return percentile(getEventNanosHistogram(), 0.5);
+    }
+
+    @Override
+    public long getEventNanos99thPercentile() {
+        return percentile(getEventNanosHistogram(), 0.99);
+    }
+
+    // upper bound of the bucket the percentile falls into
+    private static long percentile(final long[] histogram, final double percentile) {
+        long total = 0;
+        for ( final long count : histogram ) total += count;
+        if ( total == 0 ) return 0;
+
+        final long rank = (long) Math.ceil(total * percentile);
+        long count = 0;
+        for ( int i = 0; i < histogram.length; i++ ) {
+            count += histogram[i];
+            if ( count >= rank ) return 1L << i;
+        }
+        return 1L << ( histogram.length - 1 );
+    }
+
+    @Override
+    public void reset() {
+        eventsRendered.reset(); proxiesBuilt.reset(); framesResolved.reset();
+        classCacheHits.reset(); classCacheMisses.reset();
+        loadClassAttempts.reset(); loadClassFailures.reset(); charsEmitted.reset();
+        captureNanos.reset(); enrichmentNanos.reset(); renderNanos.reset();
+        for ( final LongAdder bucket : eventNanos ) bucket.reset();
+        FrameLineCache.INSTANCE.resetCounts();
+        EnhancedThrowableProxy.negativeClassCache.resetCounts();
+    }
+
+}
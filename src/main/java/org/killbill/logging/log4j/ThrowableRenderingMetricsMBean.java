@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+/**
+ * Throwable rendering (%yEx) metrics, registered as
+ * <code>org.killbill.logging.log4j:type=ThrowableRendering</code>.
+ *
+ * Timings are only measured while enabled using {@link #setTimingEnabled(boolean)}
+ * (the TimingEnabled attribute), counters are always kept.
+ *
+ * @author kares
+ */
+public interface ThrowableRenderingMetricsMBean {
+
+    long getEventsRendered();
+
+    long getProxiesBuilt();
+
+    long getFramesResolved();
+
+    long getClassCacheHits();
+
+    long getClassCacheMisses();
+
+    long getLoadClassAttempts();
+
+    long getLoadClassFailures();
+
+    /**
+     * @return class loads skipped since the class was recently found unresolvable
+     */
+    long getNegativeClassCacheHits();
+
+    long getNegativeClassCacheMisses();
+
+    int getNegativeClassCacheSize();
+
+    long getCharsEmitted();
+
+    long getFrameLineCacheHits();
+
+    long getFrameLineCacheMisses();
+
+    /**
+     * @return hits / lookups of (cross-event) cached rendered frame lines
+     */
+    double getFrameLineCacheHitRatio();
+
+    int getFrameLineCacheSize();
+
+    boolean isTimingEnabled();
+
+    void setTimingEnabled(boolean enabled);
+
+    long getCaptureNanos();
+
+    long getEnrichmentNanos();
+
+    long getRenderNanos();
+
+    /**
+     * @return event counts by (total) rendering time, bucket N counts events
+     * that took less than 2^N nanoseconds (and more than 2^(N-1))
+     */
+    long[] getEventNanosHistogram();
+
+    long getEventNanos50thPercentile();
+
+    long getEventNanos99thPercentile();
+
+    void reset();
+
+}
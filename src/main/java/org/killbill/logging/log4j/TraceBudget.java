@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+/**
+ * Output limits for rendering a single (extended) stack-trace.
+ *
+ * When limited the top frames of the outer-most throwable and of the root
+ * cause are kept, causes in between are (mostly) reduced to their header line.
+ *
+ * @author kares
+ */
+final class TraceBudget {
+
+    static final TraceBudget UNLIMITED = new TraceBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+
+    final int maxChars;
+    final int maxFrames;
+    final boolean rootCauseFirst;
+
+    /**
+     * @param maxChars maximum characters (roughly) to produce
+     * @param maxFrames maximum (non-ignored) frames to print
+     * @param rootCauseFirst render the root cause first and enclosing ones as "Wrapped by: "
+     */
+    TraceBudget(final int maxChars, final int maxFrames, final boolean rootCauseFirst) {
+        this.maxChars = maxChars;
+        this.maxFrames = maxFrames;
+        this.rootCauseFirst = rootCauseFirst;
+    }
+
+    boolean isLimited() {
+        return maxChars != Integer.MAX_VALUE || maxFrames != Integer.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks trace fingerprints seen within a time window (in a bounded LRU).
+ *
+ * @see EnhancedThrowableProxy#getFingerprint()
+ *
+ * @author kares
+ */
+final class TraceDeduplicator {
+
+    static final class Occurrence {
+
+        final long firstSeen;
+        final int count;
+
+        Occurrence(final long firstSeen, final int count) {
+            this.firstSeen = firstSeen;
+            this.count = count;
+        }
+
+        boolean isFirst() { return count == 1; }
+
+    }
+
+    private final long windowMillis;
+    private final Map<Long, Occurrence> occurrences;
+
+    TraceDeduplicator(final long windowMillis, final int maxSize) {
+        this.windowMillis = windowMillis;
+        this.occurrences = new LinkedHashMap<Long, Occurrence>(Math.min(maxSize, 64), 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Occurrence> eldest) {
+                return size() > maxSize;
+            }
+
+        };
+    }
+
+    /**
+     * Record an occurrence of a trace.
+     *
+     * @param fingerprint the trace fingerprint
+     * @param time the (event) time in millis
+     * @return the occurrence, with a count of 1 if first seen (within the window)
+     */
+    Occurrence occurred(final long fingerprint, final long time) {
+        final Long key = fingerprint;
+        synchronized (occurrences) {
+            final Occurrence prev = occurrences.get(key);
+            final Occurrence next;
+            if ( prev == null || time - prev.firstSeen >= windowMillis ) {
+                next = new Occurrence(time, 1);
+            }
+            else {
+                next = new Occurrence(prev.firstSeen, prev.count + 1);
+            }
+            occurrences.put(key, next);
+            return next;
+        }
+    }
+
+    int size() {
+        synchronized (occurrences) { return occurrences.size(); }
+    }
+
+}
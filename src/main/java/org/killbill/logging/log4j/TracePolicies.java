@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rendering policies (lines, packaging, ignored packages) per exception type.
+ *
+ * A policy configured for a class applies to its sub-classes as well, the
+ * resolved policy is remembered by class name along with its (weakly held)
+ * loader thus after the first event of a type the (lock-free) lookup does not
+ * walk the hierarchy again.
+ * Same as with {@link ClassInfoCache} we do not use a {@link ClassValue}, a
+ * policy hanging off a system exception class would pin our loader.
+ *
+ * @author kares
+ */
+final class TracePolicies {
+
+    static final int FULL = Integer.MAX_VALUE;
+
+    /**
+     * A (resolved) policy.
+     */
+    static final class Policy {
+
+        final int lines;
+        final boolean packaging;
+        final PackageMatcher ignorePackages;
+
+        Policy(final int lines, final boolean packaging, final PackageMatcher ignorePackages) {
+            this.lines = lines;
+            this.packaging = packaging;
+            this.ignorePackages = ignorePackages;
+        }
+
+        /**
+         * @return whether nothing gets printed
+         */
+        boolean isNone() {
+            return lines <= 0;
+        }
+
+        /**
+         * @return whether the trace head might be printed without building a proxy
+         */
+        boolean isCheap() {
+            return ! packaging && lines != FULL && ignorePackages.isEmpty();
+        }
+
+    }
+
+    /**
+     * A policy as configured e.g. <code>3:nopackaging:filters=org.jboss;sun.reflect</code>,
+     * parts not specified are inherited from the converter's options.
+     */
+    static final class Spec {
+
+        int lines = -1; // inherited
+        Boolean packaging;
+        final List<String> packages = new ArrayList<String>(4);
+
+        /**
+         * @param spec the policy specification (':' separated)
+         * @return the spec
+         * @throws NumberFormatException for invalid line counts
+         * @throws IllegalArgumentException for unknown parts
+         */
+        static Spec parse(final String spec) {
+            final Spec result = new Spec();
+            for ( final String part : spec.split(":") ) {
+                final String p = part.trim();
+                if ( p.isEmpty() ) continue;
+                if ( p.equalsIgnoreCase("full") ) result.lines = FULL;
+                else if ( p.equalsIgnoreCase("none") ) result.lines = 0;
+                else if ( p.equalsIgnoreCase("short") ) result.lines = 2;
+                else if ( p.equalsIgnoreCase("nopackaging") ) result.packaging = Boolean.FALSE;
+                else if ( p.equalsIgnoreCase("packaging") ) result.packaging = Boolean.TRUE;
+                else if ( p.regionMatches(true, 0, "filters=", 0, 8) ) {
+                    for ( final String pkg : p.substring(8).split(";") ) {
+                        if ( ! pkg.trim().isEmpty() ) result.packages.add(pkg.trim());
+                    }
+                }
+                else if ( Character.isDigit(p.charAt(0)) ) result.lines = Integer.parseInt(p);
+                else throw new IllegalArgumentException("unknown policy part: " + p);
+            }
+            return result;
+        }
+
+    }
+
+    private final Policy defaultPolicy;
+    private final Map<String, Policy> classPolicies;
+
+    /**
+     * A resolved policy of a type, the type's loader is weakly held.
+     */
+    static final class Resolved extends WeakReference<ClassLoader> {
+
+        final boolean boot;
+        final Policy policy;
+
+        Resolved(final ClassLoader loader, final Policy policy) {
+            super(loader);
+            this.boot = loader == null;
+            this.policy = policy;
+        }
+
+        boolean isFor(final ClassLoader loader) {
+            return loader == null ? boot : get() == loader;
+        }
+
+    }
+
+    // resolved policies (bounded) by class name, same named types from different
+    // loaders replace each other (simply resolved again)
+    private static final int MAX_TYPES = 512;
+    private final ConcurrentMap<String, Resolved> typePolicies = new ConcurrentHashMap<String, Resolved>(32);
+
+    /**
+     * @param defaultPolicy policy for types not configured
+     * @param defaultPackages the (converter's) ignored packages, policy filters are added to these
+     * @param specs the configured policies per (fully qualified) exception class name
+     */
+    TracePolicies(final Policy defaultPolicy, final Collection<String> defaultPackages, final Map<String, Spec> specs) {
+        this.defaultPolicy = defaultPolicy;
+        if ( specs == null || specs.isEmpty() ) {
+            this.classPolicies = Collections.emptyMap();
+        }
+        else {
+            this.classPolicies = new HashMap<String, Policy>(specs.size() * 2);
+            for ( final Map.Entry<String, Spec> entry : specs.entrySet() ) {
+                final Spec spec = entry.getValue();
+                PackageMatcher ignorePackages = defaultPolicy.ignorePackages;
+                if ( ! spec.packages.isEmpty() ) {
+                    final List<String> packages = new ArrayList<String>(spec.packages);
+                    if ( defaultPackages != null ) packages.addAll(defaultPackages);
+                    ignorePackages = PackageMatcher.compile(packages);
+                }
+                classPolicies.put(entry.getKey(), new Policy(
+                    spec.lines >= 0 ? spec.lines : defaultPolicy.lines,
+                    spec.packaging != null ? spec.packaging : defaultPolicy.packaging,
+                    ignorePackages
+                ));
+            }
+        }
+    }
+
+    Policy policyFor(final Throwable thrown) {
+        if ( classPolicies.isEmpty() ) return defaultPolicy;
+        final Class<?> type = thrown.getClass();
+        final ClassLoader loader = type.getClassLoader();
+        final Resolved resolved = typePolicies.get(type.getName());
+        if ( resolved != null && resolved.isFor(loader) ) return resolved.policy;
+
+        final Policy policy = resolve(type);
+        // re-resolving is cheap, thus simply start over when full
+        if ( typePolicies.size() >= MAX_TYPES ) typePolicies.clear();
+        typePolicies.put(type.getName(), new Resolved(loader, policy));
+        return policy;
+    }
+
+    private Policy resolve(final Class<?> type) {
+        for ( Class<?> klass = type; klass != null; klass = klass.getSuperclass() ) {
+            final Policy policy = classPolicies.get(klass.getName());
+            if ( policy != null ) return policy;
+        }
+        return defaultPolicy;
+    }
+
+    Policy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+}
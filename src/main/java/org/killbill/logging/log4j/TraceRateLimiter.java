@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket like rate limiting of traces, keyed by the exception type and
+ * its top frames, so that distinct failures of the same type are limited apart.
+ *
+ * Each key's bucket is a single atomic "theoretical arrival time" (GCRA) thus
+ * threads hitting the same key only compete in a CAS, never in a lock.
+ * Limits (traces per second) are configured for all types and/or per exception
+ * class, a class limit also applies to sub-classes.
+ *
+ * @author kares
+ */
+final class TraceRateLimiter {
+
+    static final int TOP_FRAMES = 3;
+
+    private static final int MAX_BUCKETS = 4096;
+    private static final int MAX_CACHED_TYPES = 1024;
+
+    static final class Limit {
+
+        final long intervalMicros; // time to earn a token
+        final long toleranceMicros; // burst - 1 tokens
+
+        Limit(final double perSecond, final int burst) {
+            this.intervalMicros = (long) ( 1000 * 1000 / perSecond );
+            this.toleranceMicros = intervalMicros * Math.max(burst - 1, 0);
+        }
+
+    }
+
+    private static final Limit UNLIMITED = new Limit(Double.POSITIVE_INFINITY, 1);
+
+    private static final class Bucket {
+
+        final AtomicLong arrivalTime = new AtomicLong();
+        final AtomicLong suppressed = new AtomicLong();
+
+    }
+
+    private final Limit defaultLimit;
+    private final Map<String, Limit> classLimits;
+
+    private final ConcurrentMap<String, Limit> typeLimits = new ConcurrentHashMap<String, Limit>();
+    private final ConcurrentMap<Long, Bucket> buckets = new ConcurrentHashMap<Long, Bucket>(64);
+
+    /**
+     * @param defaultLimit limit for all traces (null for no limit)
+     * @param classLimits limits per (fully qualified) exception class name
+     */
+    TraceRateLimiter(final Limit defaultLimit, final Map<String, Limit> classLimits) {
+        this.defaultLimit = defaultLimit == null ? UNLIMITED : defaultLimit;
+        this.classLimits = classLimits == null ? Collections.<String, Limit>emptyMap() : classLimits;
+    }
+
+    /**
+     * Acquire a token for printing the trace.
+     *
+     * @param thrown the throwable
+     * @param key the trace's key, see {@link #keyOf(Throwable, StackTraceElement[])}
+     * @param timeMillis the event's time
+     * @return 0 if the trace should be printed, otherwise the number of suppressed traces
+     * (for the key) since the last printed one, including this one
+     */
+    long acquire(final Throwable thrown, final long key, final long timeMillis) {
+        final Limit limit = limitFor(thrown.getClass());
+        if ( limit == UNLIMITED ) return 0;
+
+        final long now = timeMillis * 1000;
+        final Bucket bucket = bucketFor(key, now);
+        final AtomicLong arrivalTime = bucket.arrivalTime;
+        while ( true ) {
+            final long time = arrivalTime.get();
+            if ( now < time - limit.toleranceMicros ) { // no token
+                return bucket.suppressed.incrementAndGet();
+            }
+            if ( arrivalTime.compareAndSet(time, Math.max(time, now) + limit.intervalMicros) ) {
+                bucket.suppressed.set(0); return 0;
+            }
+        }
+    }
+
+    private Bucket bucketFor(final Long key, final long now) {
+        Bucket bucket = buckets.get(key);
+        if ( bucket == null ) {
+            if ( buckets.size() >= MAX_BUCKETS ) evict(now); // keys should not be (much) unbounded
+            final Bucket newBucket = new Bucket();
+            bucket = buckets.putIfAbsent(key, newBucket);
+            if ( bucket == null ) bucket = newBucket;
+        }
+        return bucket;
+    }
+
+    private void evict(final long now) {
+        final Iterator<Bucket> it = buckets.values().iterator();
+        while ( it.hasNext() ) { // first drop idle buckets, these have all their tokens (same as a new one)
+            if ( it.next().arrivalTime.get() <= now ) it.remove();
+        }
+        // still full - make room by dropping (arbitrary) buckets, most keep limiting
+        final int targetSize = MAX_BUCKETS - MAX_BUCKETS / 4 - 1;
+        final Iterator<Long> keys = buckets.keySet().iterator();
+        while ( buckets.size() > targetSize && keys.hasNext() ) {
+            keys.next(); keys.remove();
+        }
+    }
+
+    int size() { return buckets.size(); }
+
+    private Limit limitFor(final Class<?> type) {
+        final String name = type.getName();
+        Limit limit = typeLimits.get(name);
+        if ( limit == null ) {
+            limit = defaultLimit;
+            for ( Class<?> klass = type; klass != null; klass = klass.getSuperclass() ) {
+                final Limit classLimit = classLimits.get(klass.getName());
+                if ( classLimit != null ) { limit = classLimit; break; }
+            }
+            if ( typeLimits.size() >= MAX_CACHED_TYPES ) typeLimits.clear();
+            typeLimits.put(name, limit);
+        }
+        return limit;
+    }
+
+    static long keyOf(final Throwable thrown, final StackTraceElement[] trace) {
+        long hash = FnvHash.hash(FnvHash.OFFSET, thrown.getClass().getName());
+        final int frames = Math.min(trace.length, TOP_FRAMES);
+        for ( int i = 0; i < frames; i++ ) {
+            hash = FnvHash.hash(hash, trace[i].getClassName());
+            hash = FnvHash.hash(hash, trace[i].getMethodName());
+            hash = FnvHash.hash(hash, trace[i].getLineNumber());
+        }
+        return hash;
+    }
+
+}
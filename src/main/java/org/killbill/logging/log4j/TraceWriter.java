@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+/**
+ * Line oriented (stack-trace) output straight into the target buffer.
+ *
+ * Lines are joined using the separator and once the line budget is used up
+ * no more output is produced, thus renderers should check {@link #isFull()}
+ * to stop walking frames early.
+ *
+ * @author kares
+ */
+final class TraceWriter {
+
+    static final String NEW_LINE = "\n";
+
+    private final StringBuilder out;
+    private final String separator;
+    private final boolean trailingSeparator;
+
+    private int remainingLines;
+    private int lineCount;
+    // (soft) limit on the buffer's length, checked before each line
+    private int lengthLimit = Integer.MAX_VALUE;
+
+    /**
+     * Un-limited writer, all lines end with a new-line.
+     * @param out the buffer to append to
+     */
+    TraceWriter(final StringBuilder out) {
+        this(out, Integer.MAX_VALUE, NEW_LINE, true);
+    }
+
+    /**
+     * @param out the buffer to append to
+     * @param maxLines the line budget
+     * @param separator the line separator
+     * @param trailingSeparator whether the last line is followed by the separator
+     */
+    TraceWriter(final StringBuilder out, final int maxLines, final String separator, final boolean trailingSeparator) {
+        this.out = out;
+        this.remainingLines = maxLines;
+        this.separator = separator;
+        this.trailingSeparator = trailingSeparator;
+    }
+
+    /**
+     * Start a new line, its content is to be appended into the returned buffer.
+     * @return the buffer
+     */
+    StringBuilder line() {
+        if ( lineCount++ > 0 ) {
+            if ( ! trailingSeparator ) out.append(separator);
+        }
+        remainingLines--;
+        return out;
+    }
+
+    /**
+     * Terminate the current line (a no-op when lines are joined).
+     */
+    void endLine() {
+        if ( trailingSeparator ) out.append(separator);
+    }
+
+    /**
+     * Append (message) text that might span multiple lines into the current line.
+     * @param text the text
+     */
+    void appendText(final String text) {
+        if ( text == null ) { out.append(text); return; }
+        int start = 0; int end;
+        while ( ( end = text.indexOf('\n', start) ) >= 0 ) {
+            if ( ! appendLimited(text, start, end) || isFull() ) return;
+            endLine(); line();
+            start = end + 1;
+        }
+        appendLimited(text, start, text.length());
+    }
+
+    private boolean appendLimited(final String text, final int start, final int end) {
+        final int room = lengthLimit - out.length();
+        if ( end - start > room ) { // e.g. a huge message
+            out.append(text, start, start + Math.max(room, 0)).append("...");
+            return false;
+        }
+        out.append(text, start, end);
+        return true;
+    }
+
+    /**
+     * @return true if the line budget is used up or the length limit was reached
+     */
+    boolean isFull() {
+        return remainingLines <= 0 || out.length() >= lengthLimit;
+    }
+
+    /**
+     * @return whether the line budget allows for more lines (length limit aside)
+     */
+    boolean hasLines() {
+        return remainingLines > 0;
+    }
+
+    /**
+     * Limit output, the buffer might still grow past the limit by a line.
+     * @param lengthLimit the (absolute) buffer length limit
+     */
+    void setLengthLimit(final int lengthLimit) {
+        this.lengthLimit = lengthLimit;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    StringBuilder getBuffer() {
+        return out;
+    }
+
+}
@@ -15,7 +15,12 @@
  */
 package org.killbill.logging.log4j;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.pattern.ConverterKeys;
@@ -38,12 +43,49 @@ import org.apache.logging.log4j.core.util.Constants;
 // NOTE: "mirroring" ExtendedThrowable's { "xEx", "xThrowable", "xException" }
 public class YmprovedThrowablePatternConverter extends ThrowablePatternConverter {
 
-    protected YmprovedThrowablePatternConverter(final String[] options) {
-        super("YmprovedThrowable", "throwable", options);
+    private final EnhancedFormatOptions enhancedOptions;
+
+    private final TraceDeduplicator deduplicator;
+
+    private final TraceRateLimiter rateLimiter;
+
+    private final RenderedTraceCache traceCache = new RenderedTraceCache(32);
+
+    private final TracePolicies policies;
+
+    private final FrameCollapser collapser;
+
+    // whether a (line limited) trace head matches the full rendering, not the case
+    // when frames are collapsed or a budget (or root cause first) re-arranges output
+    private final boolean cheapHead;
+
+    protected YmprovedThrowablePatternConverter(final Configuration config, final String[] options) {
+        super("YmprovedThrowable", "throwable", EnhancedFormatOptions.standardOptions(options));
+        this.enhancedOptions = EnhancedFormatOptions.newInstance(options);
+        this.policies = enhancedOptions.newTracePolicies(this.options.getLines(), this.options.getPackages());
+        this.collapser = enhancedOptions.newFrameCollapser();
+        final TraceBudget budget = enhancedOptions.getBudget();
+        this.cheapHead = collapser.isEmpty() && ! budget.isLimited() && ! budget.rootCauseFirst;
+        if ( enhancedOptions.isDedupe() ) {
+            deduplicator = new TraceDeduplicator(enhancedOptions.getDedupeWindowMillis(), enhancedOptions.getDedupeMaxSize());
+        }
+        else {
+            deduplicator = null;
+        }
+        rateLimiter = enhancedOptions.isRateLimited() ? enhancedOptions.newRateLimiter() : null;
+        ThrowableRenderingMetrics.register(config);
+        if ( enhancedOptions.isPrewarm() && enhancedOptions.isPackaging() ) {
+            ThrowableCacheWarmer.startConfigured(enhancedOptions.getPrewarmPackages(), enhancedOptions.getPrewarmMillis());
+        }
     }
 
-    public static YmprovedThrowablePatternConverter newInstance(final String[] options) {
-        return new YmprovedThrowablePatternConverter(options);
+    /**
+     * @param config the configuration (might be null)
+     * @param options the converter options
+     * @return the converter
+     */
+    public static YmprovedThrowablePatternConverter newInstance(final Configuration config, final String[] options) {
+        return new YmprovedThrowablePatternConverter(config, options);
     }
 
     /**
@@ -52,34 +94,163 @@ public class YmprovedThrowablePatternConverter extends ThrowablePatternConverter
     @Override
     public void format(final LogEvent event, final StringBuilder toAppendTo) {
         final Throwable thrown = event.getThrown();
-        if ( thrown != null && options.anyLines() ) {
-            EnhancedThrowableProxy proxy = null;
-            if ( event instanceof Log4jLogEvent ) {
-                proxy = new EnhancedThrowableProxy(thrown);
+        if ( thrown != null ) {
+            if ( ! ( event instanceof Log4jLogEvent ) ) {
+                if ( options.anyLines() ) super.format(event, toAppendTo);
+                return;
             }
 
-            if ( proxy == null ) {
-                super.format(event, toAppendTo); return;
-            }
+            final TracePolicies.Policy policy = policies.policyFor(thrown);
+            if ( policy.isNone() ) return;
 
-            final CharSequence trace = proxy.getExtendedStackTraceAsString(options.getPackages());
             final int len = toAppendTo.length();
             if ( len > 0 && ! Character.isWhitespace( toAppendTo.charAt(len - 1) ) ) {
                 toAppendTo.append(' ');
             }
-            if ( ! options.allLines() || ! Constants.LINE_SEPARATOR.equals( options.getSeparator() ) ) {
-                final String[] stackTrace = trace.toString().split( Constants.LINE_SEPARATOR );
-                final int limit = options.minLines(stackTrace.length) - 1;
-                final String separator = options.getSeparator();
-                for ( int i = 0; i <= limit; ++i ) {
-                    toAppendTo.append( stackTrace[i] );
-                    if ( i < limit ) toAppendTo.append( separator );
-                }
+
+            formatThrown(event, thrown, policy, toAppendTo);
+
+            final ThrowableRenderingMetrics metrics = ThrowableRenderingMetrics.INSTANCE;
+            metrics.eventsRendered.increment();
+            metrics.charsEmitted.add(toAppendTo.length() - len);
+        }
+    }
+
+    private void formatThrown(final LogEvent event, final Throwable thrown,
+        final TracePolicies.Policy policy, final StringBuilder toAppendTo) {
+        // same instance logged again (e.g. while being re-thrown)
+        final RenderedTraceCache.Entry cached = traceCache.get(thrown);
+        // the (top-level) trace is retrieved once and shared with the proxy
+        final StackTraceElement[] trace = cached == null ? thrown.getStackTrace() : null;
+
+        // a re-logged instance is limited as well (its key remembered with the trace)
+        long rateKey = 0;
+        if ( rateLimiter != null ) {
+            rateKey = cached != null ? cached.rateKey : TraceRateLimiter.keyOf(thrown, trace);
+            final long suppressed = rateLimiter.acquire(thrown, rateKey, event.getTimeMillis());
+            if ( suppressed > 0 ) {
+                final TraceWriter out = formatHeader(thrown, toAppendTo);
+                toAppendTo.append(" [trace rate limited, ").append(suppressed).append(" suppressed]");
+                out.endLine();
+                return;
             }
-            else {
-                toAppendTo.append(trace);
+        }
+
+        if ( cached != null ) {
+            if ( ! formatDuplicate(event, thrown, cached.fingerprint, toAppendTo) ) {
+                toAppendTo.append(cached.trace);
+            }
+            return;
+        }
+
+        // duplicates are detected before any caller capturing and class resolving,
+        // traces retrieved along the cause chain are kept for the proxy (retrieved once)
+        final List<StackTraceElement[]> traces;
+        final long fingerprint;
+        if ( deduplicator != null ) {
+            traces = new ArrayList<StackTraceElement[]>(4); traces.add(trace);
+            fingerprint = EnhancedThrowableProxy.fingerprintOf(thrown, traces);
+            if ( formatDuplicate(event, thrown, fingerprint, toAppendTo) ) return;
+        }
+        else {
+            traces = Collections.singletonList(trace);
+            fingerprint = 0;
+        }
+
+        final boolean cheap = cheapHead && policy.isCheap();
+        final RecursionFold fold = cheap ? RecursionFold.detect(trace, trace.length) : null;
+        if ( cheap && headLength(trace, fold) >= policy.lines - 1 ) {
+            final int start = toAppendTo.length();
+            formatHead(thrown, trace, fold, newTraceWriter(toAppendTo, policy.lines));
+            traceCache.put(thrown, toAppendTo, start, fingerprint, rateKey);
+            return;
+        }
+
+        final ThrowableRenderingMetrics metrics = ThrowableRenderingMetrics.INSTANCE;
+        final boolean timing = metrics.isTiming();
+        final long begin = timing ? System.nanoTime() : 0;
+        final CallerClasses stack = captureCallerClasses(thrown, policy.packaging);
+        final long captured = timing ? System.nanoTime() : 0;
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(thrown, policy.packaging, stack, traces, collapser);
+        metrics.proxiesBuilt.increment();
+        final long built = timing ? System.nanoTime() : 0;
+
+        final int start = toAppendTo.length();
+        proxy.formatExtendedStackTrace(newTraceWriter(toAppendTo, policy.lines), policy.ignorePackages, enhancedOptions.getBudget());
+        traceCache.put(thrown, toAppendTo, start, fingerprint, rateKey);
+        if ( timing ) metrics.timed(captured - begin, built - captured, System.nanoTime() - built);
+    }
+
+    EnhancedThrowableProxy newThrowableProxy(final Throwable thrown) {
+        final boolean packaging = policies.policyFor(thrown).packaging;
+        return new EnhancedThrowableProxy(thrown, packaging, captureCallerClasses(thrown, packaging), null, collapser);
+    }
+
+    // frame lines the head prints, with a fold the repeated cycles take a single line
+    private static int headLength(final StackTraceElement[] trace, final RecursionFold fold) {
+        return fold == null ? trace.length : trace.length - ( fold.foldEnd() - fold.foldStart() ) + 1;
+    }
+
+    // the header and top frames, straight from the trace (no packaging, no causes), folded as the proxy would
+    private static void formatHead(final Throwable thrown, final StackTraceElement[] trace,
+        final RecursionFold fold, final TraceWriter out) {
+        formatHeader(thrown, out).endLine();
+        for ( int i = 0; i < trace.length && ! out.isFull(); i++ ) {
+            if ( fold != null && i == fold.foldStart() ) {
+                out.line().append("\t[frames ").append(fold.start + 1).append('-').append(fold.start + fold.period).
+                    append(" repeated ").append(fold.count - 1).append(" times]");
+                out.endLine();
+                i = fold.foldEnd() - 1; continue;
             }
+            out.line().append("\tat ").append(trace[i]); out.endLine();
+        }
+    }
+
+    private CallerClasses captureCallerClasses(final Throwable thrown, final boolean packaging) {
+        if ( ! packaging ) return null;
+        if ( enhancedOptions.isDeferred() ) {
+            // caller classes (if any) captured on the logging thread
+            return CallerSnapshots.take(thrown);
+        }
+        return CallerClasses.capture();
+    }
+
+    private boolean formatDuplicate(final LogEvent event, final Throwable thrown,
+        final long fingerprint, final StringBuilder toAppendTo) {
+        if ( deduplicator == null ) return false;
+
+        final long time = event.getTimeMillis();
+        final TraceDeduplicator.Occurrence occurrence = deduplicator.occurred(fingerprint, time);
+        if ( occurrence.isFirst() ) return false;
+
+        final TraceWriter out = formatHeader(thrown, toAppendTo);
+        toAppendTo.append(" [duplicate trace ").append(Long.toHexString(fingerprint)).
+            append(" logged ").append(occurrence.count).append(" times, first ").
+            append(time - occurrence.firstSeen).append(" ms ago]");
+        out.endLine();
+        return true;
+    }
+
+    // a single line with the throwable's name and message (line not ended)
+    private TraceWriter formatHeader(final Throwable thrown, final StringBuilder toAppendTo) {
+        return formatHeader(thrown, newTraceWriter(toAppendTo, options.getLines()));
+    }
+
+    private static TraceWriter formatHeader(final Throwable thrown, final TraceWriter out) {
+        final StringBuilder sb = out.line().append(thrown.getClass().getName());
+        final String msg = thrown.getMessage();
+        if ( msg != null ) {
+            sb.append(": "); out.appendText(msg);
+        }
+        return out;
+    }
+
+    private TraceWriter newTraceWriter(final StringBuilder toAppendTo, final int lines) {
+        if ( lines != TracePolicies.FULL || ! Constants.LINE_SEPARATOR.equals( options.getSeparator() ) ) {
+            // lines joined using the separator, without a trailing one
+            return new TraceWriter(toAppendTo, lines, options.getSeparator(), false);
         }
+        return new TraceWriter(toAppendTo);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.testng.SkipException;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.*;
+
+/**
+ * Allocation budgets (bytes allocated per %yEx event) of the rendering path, so
+ * that changes in allocation rate do not happen silently.
+ *
+ * Budgets were measured on Java 17 where caller classes are captured using a
+ * StackWalker, the (Java 8) fallback allocates differently thus is skipped.
+ *
+ * @author kares
+ */
+public class TestAllocations {
+
+    private static final int WARMUP = 200;
+    private static final int EVENTS = 500;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    @BeforeClass
+    public void checkAllocatedBytesSupported() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( ! ( bean instanceof com.sun.management.ThreadMXBean ) ) {
+            throw new SkipException("com.sun.management.ThreadMXBean not available");
+        }
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        if ( ! threadBean.isThreadAllocatedMemorySupported() ) {
+            throw new SkipException("thread allocated memory not supported");
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        try {
+            Class.forName("java.lang.StackWalker");
+        }
+        catch (ClassNotFoundException e) {
+            throw new SkipException("budgets measured with a StackWalker (Java 9+)");
+        }
+    }
+
+    // budgets are roughly twice the measured allocations (at the time of writing)
+
+    @Test
+    public void allocationsDeepTrace() {
+        assertAllocatedPerEvent(new ThrowableFactory() {
+            Throwable newThrowable(int i) { return deepException(100); }
+        }, 40 * 1024, "full");
+    }
+
+    @Test
+    public void allocationsChainedTrace() {
+        assertAllocatedPerEvent(new ThrowableFactory() {
+            Throwable newThrowable(int i) { return chainedException(); }
+        }, 44 * 1024, "full");
+    }
+
+    @Test
+    public void allocationsSuppressed() {
+        assertAllocatedPerEvent(new ThrowableFactory() {
+            Throwable newThrowable(int i) { return suppressedException(); }
+        }, 40 * 1024, "full");
+    }
+
+    @Test
+    public void allocationsUnresolvableFrames() {
+        assertAllocatedPerEvent(new ThrowableFactory() {
+            Throwable newThrowable(int i) { return TestGoldenOutput.unresolvableException(); }
+        }, 16 * 1024, "full");
+    }
+
+    @Test
+    public void allocationsWithoutPackaging() {
+        assertAllocatedPerEvent(new ThrowableFactory() {
+            Throwable newThrowable(int i) { return deepException(100); }
+        }, 26 * 1024, "nopackaging");
+    }
+
+    private abstract static class ThrowableFactory {
+
+        abstract Throwable newThrowable(int i);
+
+    }
+
+    private void assertAllocatedPerEvent(final ThrowableFactory factory, final long budget, final String... options) {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, options);
+        // throwables (and events) are created up-front - not accounted for
+        final LogEvent[] events = new LogEvent[WARMUP + EVENTS];
+        for ( int i = 0; i < events.length; i++ ) {
+            events[i] = TestYmprovedThrowablePatternConverter.newEvent(factory.newThrowable(i));
+        }
+        final StringBuilder out = new StringBuilder(64 * 1024);
+
+        for ( int i = 0; i < WARMUP; i++ ) {
+            out.setLength(0); converter.format(events[i], out);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for ( int i = WARMUP; i < events.length; i++ ) {
+            out.setLength(0); converter.format(events[i], out);
+        }
+        final long perEvent = ( threadBean.getThreadAllocatedBytes(threadId) - before ) / EVENTS;
+
+        assertTrue(out.length() > 0);
+        assertTrue(perEvent <= budget, "allocated " + perEvent + " bytes per event, budget: " + budget);
+    }
+
+    private static Throwable deepException(final int depth) {
+        if ( depth == 0 ) return new IllegalStateException("deep");
+        return deepException(depth - 1);
+    }
+
+    private static Throwable chainedException() {
+        Throwable cause = new IllegalArgumentException("root");
+        for ( int i = 0; i < 4; i++ ) cause = new IllegalStateException("wrapper " + i, cause);
+        return cause;
+    }
+
+    private static Throwable suppressedException() {
+        final Exception e = new Exception("suppressing");
+        for ( int i = 0; i < 3; i++ ) e.addSuppressed(new IllegalStateException("suppressed " + i));
+        return e;
+    }
+
+}
@@ -15,8 +15,29 @@
  */
 package org.killbill.logging.log4j;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.logging.log4j.core.impl.ExtendedClassInfo;
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.util.ReflectionUtil;
 
 import static org.testng.Assert.*;
 import org.testng.annotations.*;
@@ -172,6 +193,447 @@ public class TestEnhancedThrowableProxy {
 
     }
 
+    @Test
+    public void classInfoSharedBetweenProxies() {
+        final EnhancedThrowableProxy proxy1 = new EnhancedThrowableProxy(new RuntimeException("1"));
+        final EnhancedThrowableProxy proxy2 = new EnhancedThrowableProxy(new RuntimeException("2"));
+
+        final ExtendedStackTraceElement[] trace1 = proxy1.getExtendedStackTrace();
+        final ExtendedStackTraceElement[] trace2 = proxy2.getExtendedStackTrace();
+        assertEquals(trace1.length, trace2.length);
+        for ( int i = 1; i < trace1.length; i++ ) { // first frame line differs
+            assertSame(trace1[i].getExtraClassInfo(), trace2[i].getExtraClassInfo(), trace1[i].toString());
+        }
+
+        assertSame(ClassInfoCache.getClassInfo(ArrayList.class, false), ClassInfoCache.getClassInfo(ArrayList.class, false));
+        assertTrue(ClassInfoCache.getClassInfo(ArrayList.class, true).getExact());
+        assertSame(ClassInfoCache.UNKNOWN_INFO, ClassInfoCache.getClassInfo(null, true));
+    }
+
+    @Test
+    public void classInfoSharedPerCodeSource() throws Exception {
+        // classes from the same jar share the entry, version resolved from the jar
+        final ExtendedClassInfo info = ClassInfoCache.getClassInfo(Test.class, false);
+        assertSame(ClassInfoCache.getClassInfo(org.testng.Assert.class, false), info);
+        assertTrue(info.getLocation().startsWith("testng-"), info.getLocation());
+        assertTrue(info.getLocation().endsWith(info.getVersion() + ".jar"), info.getLocation() + " " + info.getVersion());
+    }
+
+    @Test
+    public void resolveVersionFromPomProperties() throws Exception {
+        final File jar = newSampleJar();
+        assertEquals(ClassInfoCache.resolveVersion(jar.toURI().toURL()), "1.2.3");
+        assertNull(ClassInfoCache.resolveVersion(new URL("http://localhost/sample-lib.jar")));
+    }
+
+    @Test
+    public void prewarmCodeSourcesAndPackages() throws Exception {
+        final File jar = newSampleJar();
+        final URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+
+        final ThrowableCacheWarmer warmer = new ThrowableCacheWarmer(loader, Arrays.asList(RecursionFold.class.getName()), 60 * 1000);
+        warmer.run();
+        assertTrue(warmer.getCodeSources() > 0);
+        assertTrue(warmer.getClasses() > 0);
+
+        final Class<?> klass = loader.loadClass(RecursionFold.class.getName());
+        assertNotSame(klass, RecursionFold.class);
+        assertEquals(ClassInfoCache.getClassInfo(klass, false).getVersion(), "1.2.3");
+
+        final Thread thread = ThrowableCacheWarmer.start(loader, null, 1000);
+        assertTrue(thread.isDaemon());
+        assertEquals(thread.getPriority(), Thread.MIN_PRIORITY);
+        thread.join(5000);
+    }
+
+    // a shaded jar (including RecursionFold.class) with 2 pom.properties
+    private static File newSampleJar() throws IOException {
+        final File jar = File.createTempFile("sample-lib-", ".jar");
+        jar.deleteOnExit();
+        final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry("META-INF/maven/org.sample/shaded-dep/pom.properties"));
+            out.write("artifactId=shaded-dep\nversion=0.9\n".getBytes("UTF-8"));
+            out.putNextEntry(new JarEntry("META-INF/maven/org.sample/sample-lib/pom.properties"));
+            out.write("artifactId=sample-lib\nversion=1.2.3\n".getBytes("UTF-8"));
+
+            final String classFile = RecursionFold.class.getName().replace('.', '/') + ".class";
+            out.putNextEntry(new JarEntry(classFile));
+            final InputStream in = RecursionFold.class.getClassLoader().getResourceAsStream(classFile);
+            try {
+                final byte[] buffer = new byte[4096]; int read;
+                while ( ( read = in.read(buffer) ) != -1 ) out.write(buffer, 0, read);
+            }
+            finally { in.close(); }
+        }
+        finally { out.close(); }
+        return jar;
+    }
+
+    @Test
+    public void negativeClassCacheSkipsKnownFailures() {
+        final int[] loadCount = new int[1];
+        final EnhancedThrowableProxy.LoaderDelegate prevDelegate = EnhancedThrowableProxy.loaderDelegate;
+        EnhancedThrowableProxy.loaderDelegate = new EnhancedThrowableProxy.LoaderDelegate() {
+
+            @Override
+            Class<?> loadClass(final String name) throws ClassNotFoundException, RuntimeException {
+                loadCount[0]++; return super.loadClass(name);
+            }
+
+        };
+        final NegativeClassCache prevCache = EnhancedThrowableProxy.negativeClassCache;
+        final NegativeClassCache cache = EnhancedThrowableProxy.negativeClassCache = new NegativeClassCache(2, 60 * 1000);
+        try {
+            assertNull( EnhancedThrowableProxy.loadClass(null, "ferko.Suska$$EnhancerByCGLIB$$1") );
+            assertNull( EnhancedThrowableProxy.loadClass(null, "ferko.Suska$$EnhancerByCGLIB$$1") );
+            assertEquals(loadCount[0], 1);
+            assertEquals(cache.getHitCount(), 1);
+            assertEquals(cache.getMissCount(), 1);
+            assertEquals(ThrowableRenderingMetrics.INSTANCE.getNegativeClassCacheHits(), 1);
+            assertEquals(ThrowableRenderingMetrics.INSTANCE.getNegativeClassCacheMisses(), 1);
+
+            // remembered per loader tried
+            final ClassLoader loader = getClass().getClassLoader();
+            assertFalse( cache.isUnresolvable(loader, "ferko.Suska$$EnhancerByCGLIB$$1") );
+            cache.markUnresolvable(loader, "ferko.Suska$$EnhancerByCGLIB$$1");
+            assertTrue( cache.isUnresolvable(loader, "ferko.Suska$$EnhancerByCGLIB$$1") );
+            assertTrue( cache.isUnresolvable(null, "ferko.Suska$$EnhancerByCGLIB$$1") );
+            assertEquals(cache.size(), 1);
+            cache.resetCounts();
+
+            assertNotNull( EnhancedThrowableProxy.loadClass(null, "java.util.ArrayList") );
+            assertNotNull( EnhancedThrowableProxy.loadClass(null, "java.util.ArrayList") );
+            assertEquals(loadCount[0], 3);
+
+            // bounded - other failures do not grow the cache past its size
+            assertNull( EnhancedThrowableProxy.loadClass(null, "ferko.Suska$$EnhancerByCGLIB$$2") );
+            assertNull( EnhancedThrowableProxy.loadClass(null, "ferko.Suska$$EnhancerByCGLIB$$3") );
+            assertTrue( cache.size() <= 2 );
+        }
+        finally {
+            EnhancedThrowableProxy.loaderDelegate = prevDelegate;
+            EnhancedThrowableProxy.negativeClassCache = prevCache;
+        }
+    }
+
+    @Test
+    public void learnedLoaderRoutesTriedAfterLastLoader() {
+        final int[] delegateCount = new int[1]; final int[] routedCount = new int[1];
+        final EnhancedThrowableProxy.LoaderDelegate prevDelegate = EnhancedThrowableProxy.loaderDelegate;
+        EnhancedThrowableProxy.loaderDelegate = new EnhancedThrowableProxy.LoaderDelegate() {
+
+            @Override
+            Class<?> loadClass(final String name) throws ClassNotFoundException, RuntimeException {
+                delegateCount[0]++; return super.loadClass(name);
+            }
+
+        };
+        final LoaderRoutes prevRoutes = EnhancedThrowableProxy.loaderRoutes;
+        final LoaderRoutes routes = EnhancedThrowableProxy.loaderRoutes = new LoaderRoutes(16);
+        final ClassLoader pluginLoader = new ClassLoader(getClass().getClassLoader()) {
+
+            @Override
+            protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+                routedCount[0]++; return super.loadClass(name, resolve);
+            }
+
+        };
+        try {
+            // learned from a (delegate) resolved class
+            assertNotNull( EnhancedThrowableProxy.loadClass(null, "org.testng.Assert") );
+            assertEquals(delegateCount[0], 1);
+            assertSame(routes.loaderFor("org.testng.Reporter"), org.testng.Assert.class.getClassLoader());
+            assertNull(routes.loaderFor("java.util.List")); // bootstrap - not learned
+
+            routes.clear();
+            routes.learn("org.testng.Assert", pluginLoader);
+            assertNotNull( EnhancedThrowableProxy.loadClass(null, "org.testng.Reporter") );
+            assertEquals(routedCount[0], 1);
+            assertEquals(delegateCount[0], 1);
+
+            // the last loader is tried first, the route only when it misses
+            assertNotNull( EnhancedThrowableProxy.loadClass(getClass().getClassLoader(), "org.testng.TestNG") );
+            assertEquals(routedCount[0], 1);
+
+            // seen resolved by another loader - ambiguous thus no longer routed
+            routes.learn("org.testng.Assert", getClass().getClassLoader());
+            assertNull(routes.loaderFor("org.testng.Reporter"));
+            routes.learn("org.testng.Assert", pluginLoader);
+            assertNull(routes.loaderFor("org.testng.Reporter"));
+            assertNull(routes.loaderFor("org.testng.xml.XmlSuite")); // not a package prefix match
+
+            for ( int i = 0; i < 32; i++ ) routes.learn("ferko" + i + ".Suska", pluginLoader);
+            assertTrue(routes.size() <= 16);
+        }
+        finally {
+            EnhancedThrowableProxy.loaderDelegate = prevDelegate;
+            EnhancedThrowableProxy.loaderRoutes = prevRoutes;
+        }
+    }
+
+    @Test
+    public void loaderRouteAmbiguityExpires() throws InterruptedException {
+        final LoaderRoutes routes = new LoaderRoutes(16);
+        final ClassLoader loader = getClass().getClassLoader();
+        routes.learn("org.testng.Assert", new ClassLoader(loader) { /* re-deployed */ });
+        routes.learn("org.testng.Assert", loader);
+        for ( int i = 0; i < 100 && routes.loaderFor("org.testng.Reporter") == null; i++ ) {
+            System.gc(); Thread.sleep(10);
+        }
+        assertSame(routes.loaderFor("org.testng.Reporter"), loader); // competing loader collected
+    }
+
+    @Test
+    public void negativeClassCacheExpires() throws InterruptedException {
+        final NegativeClassCache cache = new NegativeClassCache(16, 1);
+        cache.markUnresolvable(null, "ferko.Suska");
+        Thread.sleep(5);
+        assertFalse( cache.isUnresolvable(null, "ferko.Suska") );
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void collapsedFramesAreNotResolved() throws Exception {
+        final Exception e = new Exception("collapsed");
+        e.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.App", "a", "App.java", 1),
+            new StackTraceElement("sun.reflect.GeneratedMethodAccessor1", "invoke", null, -1),
+            new StackTraceElement("java.lang.reflect.Method", "invoke", "Method.java", 498),
+            new StackTraceElement("ferko.App", "b", "App.java", 2),
+            new StackTraceElement("ferko.Service$$EnhancerByGuice$$1", "run", null, -1),
+            new StackTraceElement("ferko.App", "main", "App.java", 3)
+        });
+
+        final List<String> loaded = new ArrayList<String>();
+        final EnhancedThrowableProxy.LoaderDelegate prevDelegate = EnhancedThrowableProxy.loaderDelegate;
+        EnhancedThrowableProxy.loaderDelegate = new EnhancedThrowableProxy.LoaderDelegate() {
+
+            @Override
+            Class<?> loadClass(final String name) throws ClassNotFoundException, RuntimeException {
+                loaded.add(name); return super.loadClass(name);
+            }
+
+        };
+        final EnhancedThrowableProxy proxy;
+        try {
+            proxy = new EnhancedThrowableProxy(e, true, null, null, FrameCollapser.compile(FrameCollapser.DEFAULT_RULES));
+        }
+        finally {
+            EnhancedThrowableProxy.loaderDelegate = prevDelegate;
+        }
+        for ( final String name : loaded ) assertEquals(name, "ferko.App");
+
+        final String trace = proxy.getExtendedStackTraceAsString().toString();
+        final String[] lines = trace.split("\n");
+        assertEquals(lines.length, 6, trace);
+        assertTrue(lines[1].startsWith("\tat ferko.App.a(App.java:1)"), trace);
+        assertEquals(lines[2], "\t... suppressed 2 lines");
+        assertTrue(lines[3].startsWith("\tat ferko.App.b(App.java:2)"), trace);
+        assertEquals(lines[4], "\t....");
+
+        final EnhancedThrowableProxy copy = (EnhancedThrowableProxy) deserialize(serialize(proxy));
+        assertEquals(copy.getExtendedStackTraceAsString().toString(), trace);
+    }
+
+    @Test
+    public void frameLinesCachedAcrossEvents() {
+        final FrameLineCache cache = new FrameLineCache(8);
+        final ExtendedStackTraceElement[][] traces = new ExtendedStackTraceElement[2][];
+        for ( int i = 0; i < traces.length; i++ ) { // another event - equal frames, other instances
+            traces[i] = new EnhancedThrowableProxy(new RuntimeException()).getExtendedStackTrace();
+        }
+        final ExtendedStackTraceElement[] frames = traces[0];
+        final ExtendedStackTraceElement frame = frames[0];
+
+        assertEquals(cache.line(frame, true), frame.toString());
+        assertEquals(cache.line(frame, false), frame.getStackTraceElement().toString());
+        assertNotSame(traces[1][0], frame);
+        assertSame(cache.line(traces[1][0], true), cache.line(frame, true));
+        assertEquals(cache.hits.sum(), 2);
+        assertEquals(cache.misses.sum(), 2);
+        assertEquals(cache.getHitRatio(), 0.5);
+
+        for ( final ExtendedStackTraceElement element : frames ) cache.line(element, true);
+        assertTrue(cache.size() <= 8, "size: " + cache.size());
+
+        final String[] rendered = new String[2]; long hits = 0;
+        for ( int i = 0; i < rendered.length; i++ ) {
+            hits = FrameLineCache.INSTANCE.hits.sum();
+            rendered[i] = new EnhancedThrowableProxy(new RuntimeException("cached")).getExtendedStackTraceAsString().toString();
+        }
+        assertEquals(rendered[1], rendered[0]);
+        assertTrue(FrameLineCache.INSTANCE.hits.sum() - hits >= frames.length, "all frames cached");
+    }
+
+    @Test
+    public void structuralEqualsAndHashCode() {
+        final EnhancedThrowableProxy[] proxies = new EnhancedThrowableProxy[2];
+        for ( int i = 0; i < proxies.length; i++ ) {
+            proxies[i] = new EnhancedThrowableProxy(new RuntimeException("message " + i, new IllegalStateException()));
+        }
+        final EnhancedThrowableProxy other = new EnhancedThrowableProxy(new RuntimeException("message 0"));
+
+        assertEquals(proxies[0], proxies[1]);
+        assertEquals(proxies[0].hashCode(), proxies[1].hashCode());
+        assertEquals(proxies[0].getFingerprint(), proxies[1].getFingerprint());
+        assertNotEquals(proxies[0], other);
+        assertNotEquals(proxies[0].getFingerprint(), other.getFingerprint());
+    }
+
+    @Test
+    public void circularCauseReference() {
+        final RuntimeException outer = new RuntimeException("outer");
+        final IllegalStateException inner = new IllegalStateException("inner", outer);
+        outer.initCause(inner);
+        inner.addSuppressed(outer);
+
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(outer);
+        final EnhancedThrowableProxy cause = proxy.getCauseProxy();
+        assertEquals(cause.getName(), IllegalStateException.class.getName());
+        assertEquals(cause.getCauseProxy().getName(), "[CIRCULAR REFERENCE: " + outer + ']');
+        assertNull(cause.getCauseProxy().getCauseProxy());
+        assertEquals(cause.getSuppressedProxies()[0].getName(), "[CIRCULAR REFERENCE: " + outer + ']');
+
+        final String trace = proxy.getExtendedStackTraceAsString().toString();
+        assertTrue(trace.contains("Caused by: [CIRCULAR REFERENCE: java.lang.RuntimeException: outer]"), trace);
+    }
+
+    @Test
+    public void commonFramesAgainstEnclosingTrace() {
+        final StackTraceElement[] trace = new StackTraceElement[] {
+            new StackTraceElement("Foo", "c", "Foo.java", 3),
+            new StackTraceElement("Foo", "b", "Foo.java", 2),
+            new StackTraceElement("Foo", "a", "Foo.java", 1)
+        };
+        final Exception outer = new Exception("outer");
+        outer.setStackTrace(new StackTraceElement[] { trace[2] });
+        final Exception middle = new Exception("middle");
+        middle.setStackTrace(new StackTraceElement[] { trace[1], trace[2] });
+        final Exception inner = new Exception("inner");
+        inner.setStackTrace(trace);
+        outer.initCause(middle); middle.initCause(inner);
+
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(outer, false);
+        assertEquals(proxy.getCommonElementCount(), 0);
+        assertEquals(proxy.getCauseProxy().getCommonElementCount(), 1);
+        assertEquals(proxy.getCauseProxy().getCauseProxy().getCommonElementCount(), 2);
+        assertEquals(proxy.getCauseProxy().getCauseProxy().getExtendedStackTrace().length, 1);
+    }
+
+    @Test
+    public void compactSerializationRoundTrip() throws Exception {
+        final RuntimeException thrown = new RuntimeException("round\ntrip", new IllegalStateException());
+        thrown.addSuppressed(new IllegalArgumentException("suppressed"));
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(thrown);
+
+        final byte[] bytes = serialize(proxy);
+        final EnhancedThrowableProxy copy = (EnhancedThrowableProxy) deserialize(bytes);
+
+        assertNull(copy.getThrowable());
+        assertEquals(copy, proxy);
+        assertEquals(copy.getMessage(), "round\ntrip");
+        assertEquals(copy.getExtendedStackTraceAsString().toString(), proxy.getExtendedStackTraceAsString().toString());
+        assertEquals(copy.getSuppressedProxies().length, 1);
+        assertEquals(copy.getSuppressedProxies()[0].getMessage(), "suppressed");
+        assertEquals(copy.getExtendedStackTrace()[0].getExtraClassInfo(), proxy.getExtendedStackTrace()[0].getExtraClassInfo());
+
+        // Log4J's proxy uses default serialization of (pretty much) the same state
+        final byte[] defaultBytes = serialize(new ThrowableProxy(thrown));
+        assertTrue(bytes.length * 2 < defaultBytes.length, bytes.length + " vs " + defaultBytes.length);
+    }
+
+    @Test
+    public void compactSerializationOfRecursion() throws Exception {
+        final StackTraceElement[] trace = new StackTraceElement[100];
+        for ( int i = 0; i < trace.length; i++ ) {
+            trace[i] = new StackTraceElement("ferko.Suska", i % 3 == 0 ? "foo" : "bar", null, i % 3);
+        }
+        final MutableStackTraceException e = new MutableStackTraceException("recursion");
+        e.stackTrace = trace;
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(e, false);
+        assertNotNull(proxy.getRecursionFold());
+
+        final EnhancedThrowableProxy copy = (EnhancedThrowableProxy) deserialize(serialize(proxy));
+        assertEquals(copy, proxy);
+        assertFalse(copy.isPackaging());
+        assertEquals(copy.getExtendedStackTraceAsString().toString(), proxy.getExtendedStackTraceAsString().toString());
+    }
+
+    @Test
+    public void compactFormRejectsUnboundedCounts() throws Exception {
+        final int[][] streams = { // version, name, message, common count, flags, frames, suppressed
+            { 1, 0, 0, 0, 0, Integer.MAX_VALUE },
+            { 1, 0, 0, 0, 0, 0, CompactProxyForm.MAX_SUPPRESSED + 1 },
+            { 1, 1, CompactProxyForm.MAX_STRING_LENGTH + 1 } // a new name string
+        };
+        for ( final int[] varInts : streams ) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            for ( final int varInt : varInts ) CompactProxyForm.writeVarInt(out, varInt);
+            out.close();
+            try {
+                new CompactProxyForm().readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+                fail("read: " + Arrays.toString(varInts));
+            }
+            catch (final StreamCorruptedException e) {
+                assertTrue(e.getMessage().startsWith("invalid "), e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] serialize(final Object obj) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj); out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] bytes) throws Exception {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try { return in.readObject(); } finally { in.close(); }
+    }
+
+    @Test
+    public void callerClassesOuterMostFirst() {
+        final Stack<Class<?>> stack = ReflectionUtil.getCurrentStackTrace();
+        final CallerClasses callers = CallerClasses.capture();
+
+        // same frames bellow this test method (above differs in capture internals)
+        boolean foundTestClass = false;
+        while ( ! stack.isEmpty() && ! foundTestClass ) {
+            assertSame(callers.peek(), stack.peek());
+            foundTestClass = stack.peek() == TestEnhancedThrowableProxy.class;
+            callers.pop(); stack.pop();
+        }
+        assertTrue(foundTestClass);
+
+        while ( callers.peek() != null ) callers.pop();
+        assertEquals(callers.remaining(), 0);
+
+        boolean java9 = true; // StackWalker (reached using method handles) is used when available
+        try { Class.forName("java.lang.StackWalker"); } catch (ClassNotFoundException e) { java9 = false; }
+        assertEquals(CallerClasses.isStackWalker(), java9);
+    }
+
+    @Test
+    public void packageMatcherMatchesPrefixes() {
+        final PackageMatcher matcher = PackageMatcher.compile(Arrays.asList(
+            "org.springframework.", "com.sun.jersey", "sun.reflect", "org.eclipse.jetty.server.", "org.spring"
+        ));
+        assertTrue( matcher.matches("org.springframework.aop.Advice") );
+        assertTrue( matcher.matches("org.springx.Foo") );
+        assertTrue( matcher.matches("com.sun.jersey.spi.container.WebApplicationImpl") );
+        assertTrue( matcher.matches("sun.reflect.NativeMethodAccessorImpl") );
+        assertTrue( matcher.matches("sun.reflect.NativeMethodAccessorImpl") ); // cached
+        assertFalse( matcher.matches("org.eclipse.jetty.util.Foo") );
+        assertFalse( matcher.matches("com.sun") );
+        assertFalse( matcher.matches("java.lang.Thread") );
+
+        assertTrue( PackageMatcher.compile(Collections.<String>emptyList()).isEmpty() );
+        assertFalse( PackageMatcher.NONE.matches("java.lang.Thread") );
+    }
+
     @Test
     public void isValidClassName() {
         assertTrue( EnhancedThrowableProxy.isValidClassName("ferko.Suska") );
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.apache.logging.log4j.core.util.Constants;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.*;
+
+/**
+ * Golden output of the rendering path, so that changes in the format do not
+ * happen silently. Line separators are normalized to '\n' before comparing.
+ *
+ * Run with <code>-Dgolden.update=true</code> to (re-)write the golden files.
+ *
+ * @author kares
+ */
+public class TestGoldenOutput {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void goldenUnresolvable() throws IOException {
+        assertGolden("unresolvable", unresolvableException());
+    }
+
+    @Test
+    public void goldenUnresolvableWithoutPackaging() throws IOException {
+        assertGolden("unresolvable-nopackaging", unresolvableException(), "nopackaging");
+    }
+
+    @Test
+    public void goldenLinesWithSeparator() throws IOException {
+        assertGolden("unresolvable-lines", unresolvableException(), "10", "separator(|)");
+    }
+
+    @Test
+    public void goldenRecursion() throws IOException {
+        final StackTraceElement[] trace = new StackTraceElement[80];
+        trace[0] = new StackTraceElement("ferko.Suska", "overflow", "Suska.java", 10);
+        for ( int i = 1; i < trace.length - 1; i++ ) {
+            trace[i] = new StackTraceElement("ferko.Suska", i % 2 == 0 ? "even" : "odd", "Suska.java", 20 + i % 2);
+        }
+        trace[trace.length - 1] = new StackTraceElement("ferko.Suska", "main", "Suska.java", 1);
+        final StackOverflowError error = new StackOverflowError();
+        error.setStackTrace(trace);
+        assertGolden("recursion", error);
+    }
+
+    @Test
+    public void goldenCollapsed() throws IOException {
+        final Exception e = new Exception("collapsed");
+        e.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.App", "a", "App.java", 1),
+            new StackTraceElement("sun.reflect.GeneratedMethodAccessor1", "invoke", null, -1),
+            new StackTraceElement("java.lang.reflect.Method", "invoke", "Method.java", 498),
+            new StackTraceElement("ferko.App", "b", "App.java", 2),
+            new StackTraceElement("ferko.Service$$EnhancerByGuice$$1", "run", null, -1),
+            new StackTraceElement("ferko.App", "main", "App.java", 3)
+        });
+        assertGolden("collapsed", e, "collapse");
+    }
+
+    @Test
+    public void goldenRootCauseFirst() throws IOException {
+        assertGolden("unresolvable-rootfirst", unresolvableException(), "rootfirst");
+    }
+
+    private static void assertGolden(final String name, final Throwable thrown, final String... options) throws IOException {
+        final String trace = normalize(TestYmprovedThrowablePatternConverter.format(thrown, options));
+        final String resource = "golden/" + name + ".txt";
+        if ( Boolean.getBoolean("golden.update") ) {
+            // resolved against the project (not the working) directory, set by surefire
+            final File file = new File(System.getProperty("basedir", "."), "src/test/resources/" + resource);
+            file.getParentFile().mkdirs();
+            final OutputStream out = new FileOutputStream(file);
+            try { out.write(trace.getBytes(UTF_8)); } finally { out.close(); }
+            return;
+        }
+
+        final InputStream in = TestGoldenOutput.class.getClassLoader().getResourceAsStream(resource);
+        assertNotNull(in, "missing golden output: " + resource);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final byte[] buf = new byte[4096]; int len;
+            while ( ( len = in.read(buf) ) != -1 ) bytes.write(buf, 0, len);
+        }
+        finally { in.close(); }
+        assertEquals(trace, normalize(new String(bytes.toByteArray(), UTF_8)), name);
+    }
+
+    // golden files might have been checked out with CRLF line endings
+    private static String normalize(final String trace) {
+        return trace.replace(Constants.LINE_SEPARATOR, "\n").replace("\r\n", "\n");
+    }
+
+    // synthetic (thus stable) frames, classes do not resolve
+    static Throwable unresolvableException() {
+        final StackTraceElement main = new StackTraceElement("ferko.Main", "main", "Main.java", 42);
+        final StackTraceElement run = new StackTraceElement("ferko.Worker", "run", "Worker.java", 100);
+
+        final Exception root = new IllegalArgumentException("invalid input");
+        root.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.Parser", "parse", "Parser.java", 7),
+            new StackTraceElement("ferko.Parser$$EnhancerByCGLIB$$1", "parse", null, -1),
+            new StackTraceElement("ferko.Service", "handle", "Service.java", 33),
+            run, main
+        });
+        final Exception cause = new IllegalStateException("handling failed", root);
+        cause.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.Service", "handle", "Service.java", 35), run, main
+        });
+        final Exception suppressed = new java.io.IOException("close failed");
+        suppressed.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.Resource", "close", "Resource.java", 12), run, main
+        });
+        cause.addSuppressed(suppressed);
+        final Exception e = new RuntimeException("multi\nline message", cause);
+        e.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.Worker", "process", "Worker.java", 120),
+            new StackTraceElement("ferko.Native", "call", null, -2),
+            run, main
+        });
+        return e;
+    }
+
+}
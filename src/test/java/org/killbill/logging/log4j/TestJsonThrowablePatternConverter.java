@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.*;
+
+/**
+ * @author kares
+ */
+public class TestJsonThrowablePatternConverter {
+
+    @Test
+    public void formatJson() {
+        final Throwable thrown = new IllegalStateException("quoted \"json\"\n\tline", new RuntimeException("cause"));
+        thrown.addSuppressed(new IllegalArgumentException());
+        final String json = format(thrown);
+
+        assertTrue(json.startsWith("{\"name\":\"java.lang.IllegalStateException\",\"message\":\"quoted \\\"json\\\"\\n\\tline\",\"commonElementCount\":0,\"frames\":[{\"class\":\"org.killbill.logging.log4j.TestJsonThrowablePatternConverter\",\"method\":\"formatJson\",\"file\":\"TestJsonThrowablePatternConverter.java\",\"line\":"), json);
+        assertTrue(json.contains(",\"location\":\"test-classes/\",\"version\":\"?\",\"exact\":true}"), json);
+        assertTrue(json.contains(",\"cause\":{\"name\":\"java.lang.RuntimeException\",\"message\":\"cause\",\"commonElementCount\":"), json);
+        assertTrue(json.contains(",\"suppressed\":[{\"name\":\"java.lang.IllegalArgumentException\",\"message\":null,"), json);
+        assertTrue(json.endsWith("}]}"), json);
+        assertEquals(json.indexOf('\n'), -1, json);
+        assertBalanced(json);
+    }
+
+    @Test
+    public void formatJsonWithoutPackaging() {
+        final String json = format(new IllegalStateException(), "nopackaging");
+
+        assertTrue(json.contains("\"line\":"), json);
+        assertEquals(json.indexOf("\"location\""), -1, json);
+        assertEquals(json.indexOf("\"exact\""), -1, json);
+        assertBalanced(json);
+    }
+
+    @Test
+    public void formatJsonMarksCollapsedFrames() {
+        final Exception thrown = new Exception("collapsed");
+        thrown.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("ferko.App", "a", "App.java", 1),
+            new StackTraceElement("sun.reflect.GeneratedMethodAccessor1", "invoke", null, -1),
+            new StackTraceElement("ferko.App", "main", "App.java", 2)
+        });
+        final String json = format(thrown, "collapse");
+
+        assertTrue(json.contains("{\"class\":\"sun.reflect.GeneratedMethodAccessor1\",\"method\":\"invoke\",\"file\":null,\"line\":-1,\"collapsed\":true}"), json);
+        assertTrue(json.contains("\"method\":\"main\",\"file\":\"App.java\",\"line\":2,\"location\":"), json);
+        assertEquals(json.indexOf("\"collapsed\":", json.indexOf("\"collapsed\":") + 1), -1, json);
+        assertBalanced(json);
+    }
+
+    @Test
+    public void formatJsonWithoutThrowable() {
+        final StringBuilder out = new StringBuilder();
+        JsonThrowablePatternConverter.newInstance(null, null).format(TestYmprovedThrowablePatternConverter.newEvent(null), out);
+        assertEquals(out.toString(), "null");
+    }
+
+    @Test
+    public void escapeControlCharacters() {
+        final StringBuilder out = new StringBuilder();
+        JsonThrowableEncoder.appendString(out, "a\u0001\\b\u001f");
+        assertEquals(out.toString(), "\"a\\u0001\\\\b\\u001f\"");
+    }
+
+    private static String format(final Throwable thrown, final String... options) {
+        return TestYmprovedThrowablePatternConverter.format(JsonThrowablePatternConverter.newInstance(null, options), thrown);
+    }
+
+    private static void assertBalanced(final String json) {
+        int depth = 0; boolean string = false;
+        for ( int i = 0; i < json.length(); i++ ) {
+            final char c = json.charAt(i);
+            if ( string ) {
+                if ( c == '\\' ) i++;
+                else if ( c == '"' ) string = false;
+                continue;
+            }
+            if ( c == '"' ) string = true;
+            else if ( c == '{' || c == '[' ) depth++;
+            else if ( c == '}' || c == ']' ) depth--;
+            assertTrue(depth >= 0, json);
+        }
+        assertEquals(depth, 0, json);
+        assertFalse(string, json);
+    }
+
+}
@@ -65,6 +65,44 @@ public class TestLog4j {
         assertEquals(1, throwable.callCount);
     }
 
+    @Test
+    public void getStackTraceCalledOnceForCausesAndSuppressed() throws IOException {
+        configureShared();
+
+        SimpleException root = new SimpleException("root");
+        SimpleException suppressed = new SimpleException("suppressed");
+        SimpleException cause = new SimpleException("cause");
+        cause.initCause(root); cause.addSuppressed(suppressed);
+        SimpleException throwable = new SimpleException("getStackTraceCalledOnceForCausesAndSuppressed");
+        throwable.initCause(cause);
+        getLogger(TestLog4j.class).info("exception", throwable);
+        assertEquals(1, throwable.callCount);
+        assertEquals(1, cause.callCount);
+        assertEquals(0, suppressed.callCount); // not rendered - thus not wrapped
+        assertEquals(1, root.callCount);
+
+        final EnhancedThrowableProxy proxy = new EnhancedThrowableProxy(throwable);
+        assertEquals(0, suppressed.callCount);
+        proxy.getCauseProxy().getSuppressedProxies(); proxy.getCauseProxy().getSuppressedProxies();
+        assertEquals(1, suppressed.callCount);
+    }
+
+    @Test
+    public void getStackTraceCalledOnceForCausesWhenDeduplicating() {
+        SimpleException root = new SimpleException("root");
+        SimpleException suppressed = new SimpleException("suppressed");
+        SimpleException cause = new SimpleException("cause");
+        cause.initCause(root); cause.addSuppressed(suppressed);
+        SimpleException throwable = new SimpleException("getStackTraceCalledOnceForCausesWhenDeduplicating");
+        throwable.initCause(cause);
+        final String trace = TestYmprovedThrowablePatternConverter.format(throwable, "dedupe(60,10)");
+        assertTrue(trace.contains("getStackTraceCalledOnceForCausesWhenDeduplicating"), trace);
+        assertEquals(1, throwable.callCount);
+        assertEquals(1, cause.callCount);
+        assertEquals(0, suppressed.callCount);
+        assertEquals(1, root.callCount);
+    }
+
     @SuppressWarnings("serial")
     private static class CallerMemoException extends RuntimeException {
 
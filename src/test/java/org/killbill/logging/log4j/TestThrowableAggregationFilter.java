@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.util.List;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.*;
+
+/**
+ * @author kares
+ */
+public class TestThrowableAggregationFilter {
+
+    @Test
+    public void aggregateByFingerprint() {
+        final ThrowableAggregationFilter filter = ThrowableAggregationFilter.createFilter(60, 10, null, null, Filter.Result.DENY, null);
+
+        for ( int i = 0; i < 3; i++ ) {
+            final Throwable thrown = new IllegalStateException("failure " + i, new RuntimeException("cause"));
+            assertEquals(filter.filter(newEvent(thrown, 1000 + i)), Filter.Result.DENY);
+        }
+        assertEquals(filter.filter(newEvent(new IllegalArgumentException("other"), 2000)), Filter.Result.DENY);
+        assertEquals(filter.filter(newEvent(null, 3000)), Filter.Result.NEUTRAL);
+
+        final List<String> summaries = filter.flush();
+        assertEquals(summaries.size(), 2, summaries.toString());
+        // lines separated the same way as by the (default) layouts
+        final String summary = summaries.get(0).replace(Constants.LINE_SEPARATOR, "\n");
+        assertTrue(summary.startsWith("3 x [trace "), summary);
+        assertTrue(summary.contains(", threads [" + Thread.currentThread().getName() + "]\n"), summary);
+        assertTrue(summary.contains("\njava.lang.IllegalStateException: failure 0\n\tat "), summary);
+        assertTrue(summary.contains("\nCaused by: java.lang.RuntimeException: cause\n"), summary);
+        assertEquals(summaries.get(0).split(Constants.LINE_SEPARATOR, -1).length, summary.split("\n", -1).length);
+        assertTrue(summaries.get(1).startsWith("1 x [trace "), summaries.get(1));
+
+        assertTrue(filter.flush().isEmpty()); // new window
+    }
+
+    @Test
+    public void aggregateBoundedFingerprints() {
+        final ThrowableAggregationFilter filter = ThrowableAggregationFilter.createFilter(60, 1, null, null, null, null);
+
+        filter.filter(newEvent(new IllegalStateException("first"), 1000));
+        filter.filter(newEvent(new IllegalArgumentException("second"), 1000));
+        filter.filter(newEvent(new IllegalArgumentException("third"), 1000));
+
+        final List<String> summaries = filter.flush();
+        assertEquals(summaries.size(), 2, summaries.toString());
+        assertEquals(summaries.get(1), "2 throwables not aggregated (over 1 distinct traces)");
+    }
+
+    @Test
+    public void flushCountsConcurrentlyAggregated() throws InterruptedException {
+        final ThrowableAggregationFilter filter = ThrowableAggregationFilter.createFilter(60, 10, null, null, null, null);
+        final Throwable thrown = new IllegalStateException("concurrent");
+        final Thread[] threads = new Thread[4];
+        for ( int i = 0; i < threads.length; i++ ) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for ( int j = 0; j < 10000; j++ ) filter.aggregate(thrown, 1000, getName());
+                }
+            };
+            threads[i].start();
+        }
+
+        long count = 0;
+        for ( final Thread thread : threads ) {
+            while ( thread.isAlive() ) { count += countOf(filter.flush()); Thread.sleep(1); }
+        }
+        count += countOf(filter.flush());
+        assertEquals(count, threads.length * 10000); // none counted into a summarized window
+    }
+
+    @Test
+    public void stopDoesNotReport() {
+        final ThrowableAggregationFilter filter = ThrowableAggregationFilter.createFilter(60, 10, null, null, null, null);
+        filter.start();
+        filter.filter(newEvent(new IllegalStateException("pending"), 1000));
+        filter.stop();
+        assertTrue(filter.flush().isEmpty()); // last window dropped
+    }
+
+    private static long countOf(final List<String> summaries) {
+        long count = 0;
+        for ( final String summary : summaries ) count += Long.parseLong(summary.substring(0, summary.indexOf(" x [")));
+        return count;
+    }
+
+    @Test
+    public void fingerprintMatchesProxy() {
+        final RuntimeException outer = new RuntimeException("outer");
+        final IllegalStateException inner = new IllegalStateException("inner", outer);
+        outer.initCause(inner);
+        final Throwable[] throwables = {
+            new IllegalStateException("chained", new RuntimeException("cause", new Exception("root"))), outer
+        };
+        for ( final Throwable thrown : throwables ) {
+            assertEquals(EnhancedThrowableProxy.fingerprintOf(thrown), new EnhancedThrowableProxy(thrown, false).getFingerprint());
+        }
+    }
+
+    private static Log4jLogEvent newEvent(final Throwable thrown, final long time) {
+        return new Log4jLogEvent("test", null, null, Level.ERROR, new SimpleMessage("test"), thrown, null, null, null, null, time);
+    }
+
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.logging.log4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.*;
+
+/**
+ * @author kares
+ */
+public class TestYmprovedThrowablePatternConverter {
+
+    @Test
+    public void formatAllLines() {
+        final Throwable thrown = new IllegalStateException("formatAllLines", new RuntimeException("cause"));
+        final String trace = format(thrown);
+
+        assertTrue(trace.startsWith("java.lang.IllegalStateException: formatAllLines\n\tat "), trace);
+        assertTrue(trace.contains("\nCaused by: java.lang.RuntimeException: cause\n"), trace);
+        assertTrue(trace.endsWith(" more\n"), trace);
+    }
+
+    @Test
+    public void formatLimitedLines() {
+        final Throwable thrown = deepException(300);
+        final String trace = format(thrown, "10");
+
+        final String[] lines = trace.split("\n", -1);
+        assertEquals(lines.length, 10, trace);
+        assertEquals(lines[0], "java.lang.IllegalStateException: deep");
+        assertTrue(lines[9].startsWith("\tat "), lines[9]);
+    }
+
+    @Test
+    public void formatShortWithSeparator() {
+        final Throwable thrown = new IllegalStateException("multi\nline message");
+        final String trace = format(thrown, "short", "separator(|)");
+
+        assertTrue(trace.startsWith("java.lang.IllegalStateException: multi|line message"), trace);
+        assertEquals(trace.indexOf('\n'), -1, trace);
+        assertEquals(trace.split("\\|").length, 2, trace); // short = 2 lines
+    }
+
+    @Test
+    public void formatAllLinesWithSeparator() {
+        final Throwable thrown = new IllegalStateException("formatAllLinesWithSeparator");
+        final String trace = format(thrown, "full", "separator( | )");
+
+        assertEquals(trace.indexOf('\n'), -1, trace);
+        assertEquals(trace.split(" \\| ").length, thrown.getStackTrace().length + 1, trace);
+        assertFalse(trace.endsWith(" | "), trace);
+    }
+
+    @Test
+    public void formatDuplicatesAsReference() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, new String[] { "dedupe(60,10)" });
+        final long proxies = ThrowableRenderingMetrics.INSTANCE.getProxiesBuilt();
+
+        final String[] traces = new String[3];
+        for ( int i = 0; i < traces.length; i++ ) {
+            traces[i] = format(converter, new IllegalStateException("failure " + i));
+        }
+        final String other = format(converter, new IllegalArgumentException("other"));
+        // duplicates detected without building (enriching) a proxy
+        assertEquals(ThrowableRenderingMetrics.INSTANCE.getProxiesBuilt(), proxies + 2);
+
+        assertTrue(traces[0].contains("\tat "), traces[0]);
+        assertTrue(traces[1].startsWith("java.lang.IllegalStateException: failure 1 [duplicate trace "), traces[1]);
+        assertTrue(traces[1].contains(" logged 2 times, first "), traces[1]);
+        assertTrue(traces[2].contains(" logged 3 times, first "), traces[2]);
+        assertEquals(traces[2].indexOf("\tat "), -1, traces[2]);
+        assertTrue(other.contains("\tat "), other);
+    }
+
+    @Test
+    public void formatRateLimited() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, new String[] { "ratelimit(0.1,2)" });
+
+        final String[] traces = new String[4];
+        for ( int i = 0; i < traces.length; i++ ) {
+            traces[i] = format(converter, new IllegalStateException("failure " + i));
+        }
+        final String other = format(converter, new IllegalStateException("other place"));
+
+        assertTrue(traces[1].contains("\tat "), traces[1]);
+        assertEquals(traces[2], "java.lang.IllegalStateException: failure 2 [trace rate limited, 1 suppressed]\n");
+        assertTrue(traces[3].endsWith(" [trace rate limited, 2 suppressed]\n"), traces[3]);
+        assertTrue(other.contains("\tat "), other);
+    }
+
+    @Test
+    public void formatRateLimitedSameInstance() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, new String[] { "ratelimit(0.1,1)" });
+
+        final Throwable thrown = new IllegalStateException("storm");
+        final String trace = format(converter, thrown);
+        final String again = format(converter, thrown); // not served from the rendered trace cache
+
+        assertTrue(trace.contains("\tat "), trace);
+        assertEquals(again, "java.lang.IllegalStateException: storm [trace rate limited, 1 suppressed]\n");
+    }
+
+    @Test
+    public void rateLimitsKeptWhenBucketsOverflow() {
+        final TraceRateLimiter limiter = new TraceRateLimiter(new TraceRateLimiter.Limit(0.1, 1), null);
+        final Throwable thrown = new IllegalStateException();
+        final long time = 1000 * 1000;
+        for ( int i = 0; i < 4095; i++ ) limiter.acquire(thrown, 1000 + i, time - 60 * 1000); // idle by now
+
+        assertEquals(limiter.acquire(thrown, 1, time), 0);
+        assertEquals(limiter.acquire(thrown, 1, time), 1);
+        assertEquals(limiter.acquire(thrown, 2, time), 0); // over the limit - idle buckets dropped
+        assertTrue(limiter.size() < 4096);
+        assertEquals(limiter.acquire(thrown, 1, time), 2); // still limited
+    }
+
+    @Test
+    public void formatRateLimitedPerClass() {
+        final YmprovedThrowablePatternConverter converter =
+            YmprovedThrowablePatternConverter.newInstance(null, new String[] { "ratelimit(java.lang.RuntimeException=0.1)" });
+
+        final String[] traces = new String[2]; final String[] others = new String[2];
+        for ( int i = 0; i < traces.length; i++ ) {
+            traces[i] = format(converter, new IllegalArgumentException("limited " + i));
+            others[i] = format(converter, new Exception("unlimited " + i));
+        }
+
+        assertTrue(traces[0].contains("\tat "), traces[0]);
+        assertTrue(traces[1].contains(" [trace rate limited, 1 suppressed]"), traces[1]);
+        assertTrue(others[1].contains("\tat "), others[1]);
+    }
+
+    @Test
+    public void formatPerTypePolicies() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, new String[] {
+            "policy(java.lang.IllegalArgumentException=none, java.lang.IllegalStateException=3:nopackaging, " +
+            "java.lang.UnsupportedOperationException=4:filters=org.testng;sun.reflect)"
+        });
+
+        assertEquals(format(converter, new NumberFormatException("control flow")), ""); // sub-class of IAE
+
+        final String head = format(converter, deepException(10));
+        final String[] lines = head.split("\n", -1);
+        assertEquals(lines.length, 3, head);
+        assertEquals(lines[0], "java.lang.IllegalStateException: deep");
+        assertTrue(lines[1].startsWith("\tat org.killbill.logging.log4j.TestYmprovedThrowablePatternConverter.deepException("), lines[1]);
+        assertFalse(lines[1].endsWith("]"), lines[1]);
+
+        final String filtered = format(converter, new UnsupportedOperationException("filtered"));
+        assertEquals(filtered.split("\n", -1).length, 4, filtered);
+
+        final RuntimeException thrown = new RuntimeException("full", new IllegalStateException("cause"));
+        final String full = format(converter, thrown);
+        assertTrue(full.contains("\nCaused by: java.lang.IllegalStateException: cause\n"), full);
+        final String[] fullLines = full.split("\n");
+        final StackTraceElement[] trace = thrown.getStackTrace();
+        assertEquals(fullLines[0], "java.lang.RuntimeException: full");
+        assertEquals(fullLines[1], "\tat " + trace[0] + " [test-classes/:?]");
+        for ( int i = 1; i < trace.length; i++ ) { // all frames with packaging data
+            final String line = fullLines[i + 1];
+            assertTrue(line.startsWith("\tat " + trace[i] + ' '), line);
+            assertTrue(line.substring(trace[i].toString().length() + 5).matches("~?\\[[^\\]]+:[^\\]]+\\]"), line);
+        }
+    }
+
+    @Test
+    public void formatHeadDeduplicatedByFingerprint() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, new String[] {
+            "3", "nopackaging", "dedupe(60,10)"
+        });
+
+        final String other = format(converter, new IllegalArgumentException("other"));
+        final String[] traces = new String[2];
+        for ( int i = 0; i < traces.length; i++ ) traces[i] = format(converter, deepException(10));
+        final String first = traces[0], again = traces[1];
+
+        assertEquals(other.split("\n", -1).length, 3, other);
+        assertEquals(first.split("\n", -1).length, 3, first); // not a duplicate of other
+        assertTrue(again.startsWith("java.lang.IllegalStateException: deep [duplicate trace "), again);
+        assertFalse(again.contains("[duplicate trace 0 "), again);
+    }
+
+    @Test
+    public void formatHeadWithinBudget() {
+        final Throwable thrown = chainedException(2, 10);
+        final String trace = format(thrown, "10", "nopackaging", "budget(100000,4)");
+
+        assertTrue(trace.contains("\nCaused by: java.lang.RuntimeException: root\n\tat "), trace);
+        assertEquals(format(thrown, "10", "nopackaging", "rootfirst").indexOf("java.lang.RuntimeException: root"), 0);
+    }
+
+    @Test
+    public void formatRecordsMetrics() throws Exception {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, null);
+        final ThrowableRenderingMetrics metrics = ThrowableRenderingMetrics.INSTANCE;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = ThrowableRenderingMetrics.getObjectName();
+        assertTrue(server.isRegistered(name), "" + name);
+
+        final boolean timing = metrics.isTimingEnabled();
+        try {
+            metrics.setTimingEnabled(false);
+            server.getAttribute(name, "RenderNanos");
+            assertFalse(metrics.isTimingEnabled()); // reading has no side effects
+            server.setAttribute(name, new Attribute("TimingEnabled", true));
+            assertTrue(metrics.isTimingEnabled());
+
+            final long events = metrics.getEventsRendered();
+            final long proxies = metrics.getProxiesBuilt();
+            final long frames = metrics.getFramesResolved();
+            final long chars = metrics.getCharsEmitted();
+            final long renderNanos = metrics.getRenderNanos();
+
+            final Throwable thrown = new IllegalStateException("metrics");
+            final String trace = format(converter, thrown);
+            format(converter, thrown); // same instance - no proxy
+
+            assertEquals(metrics.getEventsRendered(), events + 2);
+            assertEquals(metrics.getProxiesBuilt(), proxies + 1);
+            assertEquals(metrics.getFramesResolved(), frames + thrown.getStackTrace().length);
+            assertEquals(metrics.getCharsEmitted(), chars + 2 * trace.length());
+            assertTrue(metrics.getRenderNanos() > renderNanos);
+            assertTrue((Long) server.getAttribute(name, "EventNanos99thPercentile") > 0);
+        }
+        finally {
+            metrics.setTimingEnabled(timing); // global - do not leak into other tests
+        }
+    }
+
+    @Test
+    public void metricsUnregisteredWithConfiguration() {
+        final int registrations = ThrowableRenderingMetrics.getRegistrations();
+        final DefaultConfiguration config = new DefaultConfiguration();
+        config.start();
+        YmprovedThrowablePatternConverter.newInstance(config, null);
+        YmprovedThrowablePatternConverter.newInstance(config, new String[] { "short" });
+        assertEquals(ThrowableRenderingMetrics.getRegistrations(), registrations + 1); // once per configuration
+        assertNotNull(ThrowableRenderingMetrics.getObjectName());
+
+        config.stop();
+        assertEquals(ThrowableRenderingMetrics.getRegistrations(), registrations);
+    }
+
+    @Test
+    public void formatSameInstanceReusesTrace() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, null);
+        final int[] getStackTraceCalls = new int[1];
+        final Throwable thrown = new IllegalStateException("formatSameInstanceReusesTrace") {
+
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                getStackTraceCalls[0]++; return super.getStackTrace();
+            }
+
+        };
+
+        final String trace = format(converter, thrown);
+        assertEquals(format(converter, thrown), trace);
+        assertEquals(getStackTraceCalls[0], 1);
+    }
+
+    @Test
+    public void renderedTraceCacheSkipsLongTraces() {
+        final RenderedTraceCache cache = new RenderedTraceCache(4);
+        final Throwable thrown = new IllegalStateException("renderedTraceCacheSkipsLongTraces");
+        final StringBuilder rendered = new StringBuilder("message ");
+        while ( rendered.length() <= RenderedTraceCache.MAX_TRACE_LENGTH + 8 ) rendered.append("\tat frame\n");
+
+        cache.put(thrown, rendered, 8, 0, 0);
+        assertNull(cache.get(thrown));
+
+        rendered.setLength(8 + RenderedTraceCache.MAX_TRACE_LENGTH);
+        cache.put(thrown, rendered, 8, 0, 0);
+        assertEquals(cache.get(thrown).trace.toString(), rendered.substring(8));
+    }
+
+    @Test
+    public void formatWithoutPackaging() {
+        final Throwable thrown = new IllegalStateException("formatWithoutPackaging", new RuntimeException("cause"));
+        final String trace = format(thrown, "nopackaging", "filters(org.testng)");
+
+        assertTrue(trace.startsWith("java.lang.IllegalStateException: formatWithoutPackaging\n\tat "), trace);
+        assertTrue(trace.contains("\nCaused by: java.lang.RuntimeException: cause\n"), trace);
+        assertTrue(trace.contains("\t... suppressed "), trace);
+        assertTrue(trace.contains(" more\n"), trace);
+        assertEquals(trace.indexOf(".java:" + thrown.getStackTrace()[0].getLineNumber() + ") ["), -1, trace);
+        assertEquals(trace.indexOf("~["), -1, trace);
+    }
+
+    @Test
+    public void formatDeferredUsingCallerSnapshot() {
+        final YmprovedThrowablePatternConverter converter = YmprovedThrowablePatternConverter.newInstance(null, new String[] { "deferred" });
+
+        final Throwable thrown = new IllegalStateException("snapshot");
+        CallerSnapshotFilter.createFilter().filter(newEvent(thrown));
+        final String trace = format(converter, thrown);
+        final String noSnapshotTrace = format(converter, new IllegalStateException("no snapshot"));
+
+        final String frame = "formatDeferredUsingCallerSnapshot(TestYmprovedThrowablePatternConverter.java:";
+        assertTrue(lineOf(trace, frame).contains(") ["), trace); // exact
+        assertTrue(lineOf(noSnapshotTrace, frame).contains(") ~["), noSnapshotTrace);
+    }
+
+    @Test
+    public void callerSnapshotTakenOnce() {
+        final Throwable thrown = new IllegalStateException("snapshot");
+        CallerSnapshots.capture(thrown);
+        final CallerClasses callers = CallerSnapshots.take(thrown);
+        assertNotNull(callers);
+        assertNull(CallerSnapshots.take(thrown)); // slot cleared - classes not retained
+
+        CallerSnapshots.capture(thrown);
+        // re-logged (from another stack) - a fresh snapshot
+        final CallerClasses recaptured = recapture(thrown);
+        assertNotNull(recaptured);
+        assertEquals(recaptured.remaining(), callers.remaining() + 1);
+    }
+
+    @Test
+    public void callerSnapshotDroppedWhenCollected() throws InterruptedException {
+        final int size = CallerSnapshots.size();
+        CallerSnapshots.capture(new IllegalStateException("never used"));
+        assertEquals(CallerSnapshots.size(), size + 1);
+
+        for ( int i = 0; i < 100 && CallerSnapshots.size() > size; i++ ) {
+            System.gc(); Thread.sleep(10);
+            recapture(new IllegalStateException("another")); // expunges collected ones
+        }
+        assertEquals(CallerSnapshots.size(), size);
+    }
+
+    private static CallerClasses recapture(final Throwable thrown) {
+        CallerSnapshots.capture(thrown);
+        return CallerSnapshots.take(thrown);
+    }
+
+    private static String lineOf(final String trace, final String part) {
+        for ( final String line : trace.split("\n") ) {
+            if ( line.contains(part) ) return line;
+        }
+        throw new AssertionError("no line with: " + part + " in: \n" + trace);
+    }
+
+    @Test
+    public void formatWithinBudget() {
+        final Throwable thrown = chainedException(10, 100);
+        final String full = format(thrown);
+        final String trace = format(thrown, "budget(2000,20)");
+
+        assertTrue(full.length() > 4000, "" + full.length());
+        assertTrue(trace.length() < 2000 + 500, trace);
+        assertTrue(trace.startsWith("java.lang.IllegalStateException: wrapper 0\n\tat "), trace);
+        assertTrue(trace.contains("\nCaused by: java.lang.IllegalStateException: wrapper 5\n"), trace);
+        assertTrue(trace.contains("\nCaused by: java.lang.RuntimeException: root\n\tat "), trace);
+        assertTrue(trace.contains(" frames elided\n"), trace);
+
+        final String chars = format(thrown, "budget(1000)");
+        assertTrue(chars.length() < 1000 + 500, chars);
+        assertTrue(chars.contains(" causes elided\n"), chars);
+        assertTrue(chars.contains("\nCaused by: java.lang.RuntimeException: root\n\tat "), chars);
+    }
+
+    @Test
+    public void formatRootCauseFirst() {
+        final Throwable thrown = chainedException(2, 10);
+        final String trace = format(thrown, "rootfirst");
+
+        assertTrue(trace.startsWith("java.lang.RuntimeException: root\n\tat "), trace);
+        assertTrue(trace.contains("\nWrapped by: java.lang.IllegalStateException: wrapper 1\n"), trace);
+        assertTrue(trace.indexOf("wrapper 1") < trace.indexOf("wrapper 0"), trace);
+
+        final String budgeted = format(thrown, "rootfirst", "budget(100000,6)");
+        assertTrue(budgeted.startsWith("java.lang.RuntimeException: root\n\tat "), budgeted);
+        assertTrue(budgeted.contains("\nWrapped by: java.lang.IllegalStateException: wrapper 0\n\tat "), budgeted);
+    }
+
+    @Test
+    public void formatRecursionFolded() {
+        final StackOverflowError overflow;
+        try { recurse(0); throw new AssertionError(); }
+        catch (StackOverflowError e) { overflow = e; }
+
+        final String trace = format(overflow);
+        assertTrue(trace.contains("\t[frames "), trace);
+        assertTrue(trace.split("\n").length < 50, trace);
+        assertTrue(trace.contains(".recurse("), trace);
+        assertTrue(trace.contains(".recurseAgain("), trace);
+
+
+        final String deep = format(deepException(100));
+        final String fold = lineOf(deep, "[frames ");
+        assertTrue(fold.matches("\t\\[frames \\d+-\\d+ repeated \\d+ times\\]"), fold);
+        assertTrue(deep.contains(".formatRecursionFolded("), deep); // frames past the cycle
+
+        final long proxies = ThrowableRenderingMetrics.INSTANCE.getProxiesBuilt();
+        final String head = format(deepException(100), "10", "nopackaging");
+        assertEquals(ThrowableRenderingMetrics.INSTANCE.getProxiesBuilt(), proxies); // printed without a proxy
+        final String[] lines = head.split("\n");
+        assertEquals(lines.length, 10, head);
+        assertEquals(lines[3], fold, head);
+        assertTrue(lines[4].contains(".formatRecursionFolded("), head);
+    }
+
+    @Test
+    public void recursionDetectedBelowTheTop() {
+        final StackTraceElement[] trace = new StackTraceElement[200];
+        for ( int i = 0; i < trace.length; i++ ) { // distinct frames with a cycle (of 3) at 50-109
+            final boolean cycle = i >= 50 && i < 110;
+            trace[i] = new StackTraceElement("ferko.Suska", cycle ? "cycle" : "frame", "Suska.java", cycle ? i % 3 : 100 + i);
+        }
+        final RecursionFold fold = RecursionFold.detect(trace, trace.length);
+        assertNotNull(fold);
+        assertEquals(fold.start, 50); assertEquals(fold.period, 3); assertEquals(fold.count, 20);
+
+        assertNull(RecursionFold.detect(Arrays.copyOf(trace, 50), 50)); // no repeated frames
+    }
+
+    private static int recurse(final int depth) {
+        return recurseAgain(depth + 1) + 1;
+    }
+
+    private static int recurseAgain(final int depth) {
+        return recurse(depth + 1) + 1;
+    }
+
+    private static Throwable chainedException(final int causes, final int depth) {
+        if ( depth > 0 ) return chainedException(causes, depth - 1);
+        Throwable cause = new RuntimeException("root");
+        for ( int i = causes - 1; i >= 0; i-- ) {
+            cause = new IllegalStateException("wrapper " + i, cause);
+        }
+        return cause;
+    }
+
+    @Test
+    public void standardOptionsExcludeEnhancedOnes() {
+        final String[] options = { "short", "dedupe(30)", "separator(|)" };
+        assertEquals(EnhancedFormatOptions.standardOptions(options), new String[] { "short", "separator(|)" });
+        assertTrue(EnhancedFormatOptions.newInstance(options).isDedupe());
+        assertEquals(EnhancedFormatOptions.newInstance(options).getDedupeWindowMillis(), 30 * 1000);
+        assertFalse(EnhancedFormatOptions.newInstance(new String[] { "full" }).isDedupe());
+    }
+
+    private static Throwable deepException(final int depth) {
+        if ( depth == 0 ) return new IllegalStateException("deep");
+        return deepException(depth - 1);
+    }
+
+    static String format(final Throwable thrown, final String... options) {
+        return format(YmprovedThrowablePatternConverter.newInstance(null, options), thrown);
+    }
+
+    static String format(final YmprovedThrowablePatternConverter converter, final Throwable thrown) {
+        final StringBuilder out = new StringBuilder();
+        converter.format(newEvent(thrown), out);
+        return out.toString();
+    }
+
+    static LogEvent newEvent(final Throwable thrown) {
+        return new Log4jLogEvent("test", null, null, Level.ERROR, new SimpleMessage("test"), thrown);
+    }
+
+}